@@ -27,16 +27,43 @@
 
 package de.lorenzwiest.zmachine;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ZInterpreter {
 
@@ -46,6 +73,269 @@ public class ZInterpreter {
 
 		////////////////////////////////////////////////////////////////////////////
 
+		private static class StoryFile {
+
+			// Immutable story data, shared by all machines of the same story
+
+			private final ByteBuffer bytes; // heap or memory-mapped
+			private final byte[] pristineDynamicMemory;
+			private final byte[][] pristineMemoryPages; // pristineDynamicMemory in pages, shared by machines until written
+			private final StringCache stringCache;
+			private final DictionaryIndex dictionaryIndex; // null if the dictionary lies in dynamic memory
+			private final Map<Integer, CompiledRoutine> compiledRoutines; // by routine address, null if not compilable
+			private RoutineClassLoader routineClassLoader; // created on first use
+			private SuperinstructionTables superinstructions; // selected by the first machine
+			private Abbreviations abbreviations; // expanded by the first machine
+			private PropertyIndex propertyIndex; // created by the first machine
+
+			public StoryFile(ByteBuffer bytes) {
+				this.bytes = bytes;
+				int baseStaticMemoryAddr = getWord(0x0E);
+				this.pristineDynamicMemory = new byte[baseStaticMemoryAddr];
+				bytes.duplicate().get(this.pristineDynamicMemory); // duplicate() leaves the shared position alone
+				this.pristineMemoryPages = toMemoryPages(this.pristineDynamicMemory);
+				this.stringCache = new StringCache();
+
+				int dictionaryAddr = getWord(0x08);
+				this.dictionaryIndex = (dictionaryAddr >= baseStaticMemoryAddr) ? new DictionaryIndex(this, dictionaryAddr) : null;
+				this.compiledRoutines = new HashMap<Integer, CompiledRoutine>();
+			}
+
+			public synchronized SuperinstructionTables getSuperinstructions(ZMachine zm) {
+				// selects the superinstructions once for all machines, as they only depend on static and high memory
+
+				if (this.superinstructions == null) {
+					this.superinstructions = zm.selectSuperinstructions();
+				}
+				return this.superinstructions;
+			}
+
+			public synchronized Abbreviations getAbbreviations(ZMachine zm) {
+				// expands the abbreviations once for all machines, from pristine dynamic memory where they lie there
+
+				if (this.abbreviations == null) {
+					this.abbreviations = zm.expandAbbreviations();
+				}
+				return this.abbreviations;
+			}
+
+			public synchronized PropertyIndex getPropertyIndex(ZMachine zm) {
+				// indexes the property tables once for all machines, from pristine dynamic memory where they lie
+
+				if (this.propertyIndex == null) {
+					this.propertyIndex = zm.createPropertyIndex();
+				}
+				return this.propertyIndex;
+			}
+
+			public synchronized CompiledRoutine getCompiledRoutine(ZMachine zm, Routine routine, List<Instruction> instrs) {
+				// compiles each routine once for all machines, as it only depends on static and high memory
+
+				if (this.compiledRoutines.containsKey(routine.addr)) {
+					return this.compiledRoutines.get(routine.addr);
+				}
+				if (this.routineClassLoader == null) {
+					this.routineClassLoader = new RoutineClassLoader();
+				}
+				CompiledRoutine compiledRoutine = RoutineCompiler.compile(zm, routine, instrs, this.routineClassLoader);
+				this.compiledRoutines.put(routine.addr, compiledRoutine);
+				return compiledRoutine;
+			}
+
+			private int getWord(int index) {
+				return ((this.bytes.get(index) & 0xFF) << 8) | (this.bytes.get(index + 1) & 0xFF);
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class DictionaryIndex {
+
+			// Open-addressing hash map from the 4-byte encoded form of a word to the
+			// address of its dictionary entry. Built once per story, read-only afterwards.
+
+			private final int[] keys; // 0 = empty slot, encoded words always have bit 15 of their 2nd z-char word set
+			private final int[] entryAddrs;
+			private final int mask;
+
+			public DictionaryIndex(StoryFile storyFile, int dictionaryAddr) {
+				int numSeparators = storyFile.bytes.get(dictionaryAddr) & 0xFF;
+				int entryLen = storyFile.bytes.get(dictionaryAddr + 1 + numSeparators) & 0xFF;
+				int numEntries = storyFile.getWord(dictionaryAddr + 1 + numSeparators + 1);
+
+				int capacity = Integer.highestOneBit(Math.max(numEntries, 1) * 2) * 2; // load factor <= 0.5
+				this.keys = new int[capacity];
+				this.entryAddrs = new int[capacity];
+				this.mask = capacity - 1;
+
+				int wordAddr = dictionaryAddr + 1 + numSeparators + 1 + 2;
+				for (int i = 0; i < numEntries; i++) {
+					int key = (storyFile.getWord(wordAddr) << 16) | storyFile.getWord(wordAddr + 2);
+					int slot = getSlot(key);
+					while ((this.keys[slot] != 0) && (this.keys[slot] != key)) {
+						slot = (slot + 1) & this.mask;
+					}
+					if (this.keys[slot] == 0) { // the first of duplicate entries wins, as with a linear scan
+						this.keys[slot] = key;
+						this.entryAddrs[slot] = wordAddr;
+					}
+					wordAddr += entryLen;
+				}
+			}
+
+			public int get(int key) { // returns 0 if the word is not in the dictionary
+				int slot = getSlot(key);
+				while (this.keys[slot] != 0) {
+					if (this.keys[slot] == key) {
+						return this.entryAddrs[slot];
+					}
+					slot = (slot + 1) & this.mask;
+				}
+				return 0;
+			}
+
+			private int getSlot(int key) {
+				int hash = key * 0x9E3779B9; // Fibonacci hashing
+				return (hash ^ (hash >>> 16)) & this.mask;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class StringCache {
+
+			// Direct-mapped cache of decoded strings in static and high memory, indexed by
+			// address. Entries are immutable, so machines on different threads may share it.
+
+			private final static int NUM_ENTRIES = 2048; // a power of 2
+			private final static int MAX_TEXT_LEN = 512; // bounds the cache to 1M chars
+
+			private static class Entry {
+				private final int addr;
+				private final String text;
+				private final int endAddr; // address after the encoded string
+
+				public Entry(int addr, String text, int endAddr) {
+					this.addr = addr;
+					this.text = text;
+					this.endAddr = endAddr;
+				}
+			}
+
+			private final Entry[] entries = new Entry[NUM_ENTRIES];
+
+			public Entry get(int addr) {
+				Entry entry = this.entries[getSlot(addr)];
+				return ((entry != null) && (entry.addr == addr)) ? entry : null;
+			}
+
+			public boolean put(Entry entry) { // returns true if an entry was evicted
+				if (entry.text.length() > MAX_TEXT_LEN) {
+					return false;
+				}
+				int slot = getSlot(entry.addr);
+				boolean isEvicted = this.entries[slot] != null;
+				this.entries[slot] = entry;
+				return isEvicted;
+			}
+
+			private int getSlot(int addr) {
+				return (addr ^ (addr >>> 11)) & (NUM_ENTRIES - 1);
+			}
+
+			public int getNumEntries() {
+				int result = 0;
+				for (Entry entry : this.entries) {
+					if (entry != null) {
+						result++;
+					}
+				}
+				return result;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class Abbreviations {
+
+			// All 96 abbreviations of a story, decoded back to back. A machine uses them as
+			// long as the bytes they were decoded from still hold their pristine values.
+
+			private final char[] chars;
+			private final int[] offsets; // start of each abbreviation in chars, then the end of the last one
+			private final SourceBytes source; // the abbreviation table and the abbreviations in dynamic memory
+
+			public Abbreviations(char[] chars, int[] offsets, SourceBytes source) {
+				this.chars = chars;
+				this.offsets = offsets;
+				this.source = source;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class PropertyIndex {
+
+			// Address of each property of each object, filled on first use. A machine uses
+			// the index as long as the bytes that place the properties still hold their
+			// pristine values: the property table pointer of each object, and the name length,
+			// size bytes and end marker of each property table. Property values may change.
+
+			private final AtomicReferenceArray<int[]> propertyAddresses; // indexed by object number
+			private final int numObjects; // objects covered by the index
+			private final SourceBytes source;
+
+			public PropertyIndex(int numObjects, SourceBytes source) {
+				this.propertyAddresses = new AtomicReferenceArray<int[]>(numObjects + 1);
+				this.numObjects = numObjects;
+				this.source = source;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class SourceBytes {
+
+			// Bytes of dynamic memory that data shared by the story's machines is derived from
+			//
+			// dynamic memory  +------+----------+------+-------+------+
+			//                 |      | abbr 0   |      | table |      |
+			//                 +------+----------+------+-------+------+
+			// bits                    1111111111        1111111
+			//                                                  ^
+			//                                                  endAddr
+
+			private final long[] bits; // one bit per byte of dynamic memory
+			private final int endAddr; // address after the last byte derived from
+
+			public SourceBytes(long[] bits) {
+				this.bits = bits;
+				int endAddr = 0;
+				for (int i = bits.length - 1; i >= 0; i--) {
+					if (bits[i] != 0) {
+						endAddr = (i * 64) + (64 - Long.numberOfLeadingZeros(bits[i]));
+						break;
+					}
+				}
+				this.endAddr = endAddr;
+			}
+
+			public boolean contains(int addr) {
+				return (addr < this.endAddr) && ((this.bits[addr >>> 6] & (1L << addr)) != 0);
+			}
+
+			public boolean isUnchanged(byte[] dynamicMemory, byte[] pristineDynamicMemory) {
+				for (int addr = 0; addr < this.endAddr; addr++) {
+					if (contains(addr) && (dynamicMemory[addr] != pristineDynamicMemory[addr])) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
 		private class Header {
 			private int versionNumber;
 			private int flags1;
@@ -59,6 +349,7 @@ public class ZInterpreter {
 			private String serialCode;
 			private int abbreviationTableAddr;
 			private int lengthOfFile;
+			private int checksum;
 
 			public Header(ZMachine zm) {
 				this.versionNumber = zm.getByte(0x00);
@@ -72,11 +363,14 @@ public class ZInterpreter {
 				this.baseStaticMemoryAddr = zm.getWord(0x0E);
 
 				byte[] bytesSerialCode = new byte[6];
-				System.arraycopy(zm.story, 0x12, bytesSerialCode, 0, 6);
+				for (int i = 0; i < 6; i++) {
+					bytesSerialCode[i] = (byte) zm.getByte(0x12 + i);
+				}
 				this.serialCode = new String(bytesSerialCode);
 
 				this.abbreviationTableAddr = zm.getWord(0x18);
 				this.lengthOfFile = zm.getWord(0x1A) * 2;
+				this.checksum = zm.getWord(0x1C);
 			}
 		}
 
@@ -88,7 +382,7 @@ public class ZInterpreter {
 			//
 			// Index Comment         Value
 			//
-			//  1023                 [ * ]
+			//   ...                 [ * ] <-- grows up to getMaxStackSize()
 			//  .... ............... .....
 			//    17 stack_2         [ * ] <-- this.topIndex
 			//    16 stack_1         [ * ]
@@ -111,14 +405,14 @@ public class ZInterpreter {
 			//  ---------------------------
 			//    -1
 
-			private final static int STACK_SIZE = 1024;
+			private final static int INITIAL_STACK_SIZE = 64; // doubles on overflow
 
 			private int[] stack;
 			private int topIndex;
 			private int stackFrameIndex; // points to previous stack frame
 
 			public Stack() {
-				this.stack = new int[STACK_SIZE];
+				this.stack = new int[INITIAL_STACK_SIZE];
 				reset();
 			}
 
@@ -128,13 +422,31 @@ public class ZInterpreter {
 			}
 
 			public void push(int value) {
-				if (this.topIndex >= STACK_SIZE) {
-					halt("push() - Stack overflow");
+				if ((this.topIndex + 1) >= this.stack.length) {
+					grow(this.topIndex + 2);
 				}
 				this.topIndex++;
 				this.stack[this.topIndex] = value;
 			}
 
+			public void grow(int minSize) {
+				if (minSize <= this.stack.length) {
+					return;
+				}
+				int maxSize = getMaxStackSize();
+				if (minSize > maxSize) {
+					halt(String.format("push() - Stack overflow, stack size limited to %d entries", maxSize));
+				}
+
+				int newSize = this.stack.length;
+				while (newSize < minSize) {
+					newSize *= 2;
+				}
+				int[] newStack = new int[Math.min(newSize, maxSize)];
+				System.arraycopy(this.stack, 0, newStack, 0, this.topIndex + 1);
+				this.stack = newStack;
+			}
+
 			public void pushInt32(int value) {
 				int hi = (value >> 16) & 0xFFFF;
 				int lo = value & 0xFFFF;
@@ -176,6 +488,81 @@ public class ZInterpreter {
 
 		////////////////////////////////////////////////////////////////////////////
 
+		private static class Instruction {
+
+			// Decoded instruction, cached by its address
+			//
+			// +--------+---------+---------+-------+--------+
+			// | opCode | opTypes | operand | store | branch |
+			// +--------+---------+---------+-------+--------+
+			// ^                             ^                ^
+			// addr                          operandsEndAddr  nextAddr
+
+			private int addr;
+			private int opCode;
+			private int operandCount; // OPCOUNT_0OP, OPCOUNT_1OP, OPCOUNT_2OP or OPCOUNT_VAR
+			private int opCodeNr;
+			private int numOperands;
+			private int[] operandTypes = new int[4];
+			private int[] operandValues = new int[4]; // constants or variable numbers
+			private int storeVarNumber; // -1 if not a store instruction
+			private boolean isBranchOnTrue;
+			private int branchTargetAddr; // branch or jump target, -1 if none or returning branchReturnValue
+			private int branchReturnValue;
+			private int operandsEndAddr;
+			private int nextAddr;
+
+			private Routine routine; // threaded routine containing this instruction, or null
+			private int routineIndex;
+			private int branchIndex; // index of the branch target in the threaded routine, or -1
+
+			private CompiledRoutine compiledRoutine; // compiled code to enter at this instruction, or null
+
+			private Superinstruction superinstruction; // superinstruction starting with this instruction, or null
+			private Instruction[] fusedInstructions;
+			private boolean isTestedByNextJz; // a load to the stack that the next fused instruction pops for jz
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class Superinstruction {
+			private int id; // index of the execution count in ZMachine.superinstructionCounts
+			private String name;
+			private int staticCount; // occurrences found when scanning the story
+		}
+
+		private static class SuperinstructionTables {
+
+			// Superinstructions of a story, shared by all its machines
+
+			private Map<Integer, Superinstruction> pairs; // keyed by opcode ids
+			private Map<Integer, Superinstruction> triples;
+			private boolean[] isStart; // indexed by opcode id
+			private int numSuperinstructions;
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
+		private static class Routine {
+
+			// Routine header and call counter, threaded or compiled when called often enough
+			//
+			// +-----------+------------------+------+
+			// | numLocals | 2 x numLocals    | code |
+			// +-----------+------------------+------+
+			// ^                              ^
+			// addr                           codeAddr
+
+			private int addr;
+			private int numLocals;
+			private int[] defaultValues;
+			private int codeAddr;
+			private int callCount;
+			private Instruction[] code; // threaded code, null if not threaded, null entries are interpreted only
+		}
+
+		////////////////////////////////////////////////////////////////////////////
+
 		private final static String EOL = "\n"; // platform-independent EOL
 
 		private final static int OPERAND_LARGE = 0b00;
@@ -185,26 +572,128 @@ public class ZInterpreter {
 
 		private final static int WORD_SIZE = 2;
 
-		private byte[] story;
+		private final static int OPCOUNT_0OP = 0;
+		private final static int OPCOUNT_1OP = 1;
+		private final static int OPCOUNT_2OP = 2;
+		private final static int OPCOUNT_VAR = 3;
+
+		// opcode opType 4 x operand store branch
+		private final static int MAX_INSTRUCTION_LEN = 1 + 1 + (4 * 2) + 1 + 2;
+
+		private final static int NUM_ABBREVIATIONS = 96;
+
+		// the caches are split into pages, so a machine only pays for the code it runs
+		private final static int CACHE_PAGE_BITS = 8;
+		private final static int CACHE_PAGE_SIZE = 1 << CACHE_PAGE_BITS;
+		private final static int CACHE_PAGE_MASK = CACHE_PAGE_SIZE - 1;
+
+		// dynamic memory is split into pages, the unit of dirty tracking and of copy-on-write between machines
+		public final static int MEMORY_PAGE_BITS = 6;
+		public final static int MEMORY_PAGE_SIZE = 1 << MEMORY_PAGE_BITS;
+		private final static int MEMORY_PAGE_MASK = MEMORY_PAGE_SIZE - 1;
+
+		public final static int DEFAULT_MAX_STACK_SIZE = 64 * 1024;
+
+		private StoryFile storyFile;
+		private ByteBuffer story; // shared, never written
+		private int storyLength;
+		private byte[][] memoryPages; // story[0..baseStaticMemoryAddr - 1] in pages of MEMORY_PAGE_SIZE bytes
+		private long[] sharedPages; // one bit per memory page shared with other machines, copied on its first write
+		private int dynamicMemoryLength;
+		private long numPagesCopied;
 		private Header header;
 		private Stack stack;
 		private int pc; // a 32-bit value
 		private boolean isRunning;
 
-		public ZMachine(byte[] story) {
-			this.story = story;
+		private Instruction[][] instructionCache; // pages indexed by instruction address, allocated on first use
+		private boolean isDynamicMemoryInstructionCached;
+		private Instruction instruction; // instruction currently executed
+		private Routine[][] routineCache; // pages indexed by routine address / 2, allocated on first use
+		private SuperinstructionTables superinstructions;
+		private long[] superinstructionCounts; // executions by superinstruction id
+		private int threadThreshold; // number of calls before a routine is threaded, 0 = never
+		private int compileThreshold; // number of calls before a routine is compiled into a JVM class, 0 = never
+		private int numRoutinesCompiled;
+		private int[] operands; // operand values of the current instruction
+		private int numOperands;
+		private long stringCacheHits;
+		private long stringCacheMisses;
+		private long stringCacheEvictions;
+		private long abbreviationsExpanded; // abbreviations taken from the expansion
+		private long abbreviationsDecoded; // abbreviations decoded on demand
+		private int localsIndex; // stack index of the current frame's local 0, local n is at localsIndex + n
+		private int numLocals; // number of locals of the current frame
+		private int globalVariablesBaseAddr; // address of global 0, global n is at globalVariablesBaseAddr + 2n
+		private boolean isStrict; // checks each variable access against the current frame
+		private int maxStackSize = DEFAULT_MAX_STACK_SIZE; // ceiling of the stack, in entries
+		private int memoryBudget = 0; // bytes of dynamic memory and stack per machine, 0 = unlimited
+		private long[] dirtyPages; // one bit per memory page written since the story started, the pages that may differ from pristine memory
+		private long[] uncomparedPages; // one bit per memory page written since the previous getStateDifference()
+		private Abbreviations abbreviations; // shared by the story's machines, null = changed by the game, decode on demand
+		private PropertyIndex propertyIndex; // shared by the story's machines, null = changed by the game, look up on demand
+
+		public ZMachine(StoryFile storyFile) {
+			this.storyFile = storyFile;
+			this.story = storyFile.bytes;
+			this.storyLength = this.story.limit();
+			this.dynamicMemoryLength = storyFile.pristineDynamicMemory.length;
+			this.sharedPages = new long[(getNumMemoryPages() + 63) / 64];
+			this.dirtyPages = new long[this.sharedPages.length];
+			this.uncomparedPages = new long[this.sharedPages.length];
+			sharePristineMemory();
 			this.header = new Header(this);
 			this.pc = this.header.initialPC;
 			this.stack = new Stack();
+			updateFrameCache();
+			this.globalVariablesBaseAddr = this.header.globalVariablesTableAddr - (16 * WORD_SIZE);
 			this.isRunning = true;
+			this.instructionCache = new Instruction[(this.storyLength >> CACHE_PAGE_BITS) + 1][];
+			this.isDynamicMemoryInstructionCached = false;
+			this.routineCache = new Routine[((this.storyLength / 2) >> CACHE_PAGE_BITS) + 1][];
+			this.threadThreshold = 0;
+			this.compileThreshold = 0;
+			this.numRoutinesCompiled = 0;
+			this.superinstructions = storyFile.getSuperinstructions(this);
+			this.superinstructionCounts = new long[this.superinstructions.numSuperinstructions];
+			this.operands = new int[4];
+			this.numOperands = 0;
+			this.abbreviations = storyFile.getAbbreviations(this);
+			this.propertyIndex = storyFile.getPropertyIndex(this);
+		}
+
+		public void setStackLimits(int maxStackSize, int memoryBudget) {
+			this.maxStackSize = maxStackSize;
+			this.memoryBudget = memoryBudget;
+		}
+
+		public int getMaxStackSize() { // the ceiling, or what is left of the memory budget
+			if (this.memoryBudget == 0) {
+				return this.maxStackSize;
+			}
+			int budgetStackSize = (this.memoryBudget - this.dynamicMemoryLength) / 4;
+			return Math.max(0, Math.min(this.maxStackSize, budgetStackSize));
 		}
 
 		public int getByte(int index) {
-			return this.story[index] & 0xFF;
+			if (index < this.dynamicMemoryLength) {
+				return this.memoryPages[index >>> MEMORY_PAGE_BITS][index & MEMORY_PAGE_MASK] & 0xFF;
+			}
+			return this.story.get(index) & 0xFF;
 		}
 
 		public void setByte(int index, int value) {
-			this.story[index] = (byte) (value & 0xFF);
+			if (index >= this.dynamicMemoryLength) {
+				halt(String.format("setByte() - Address 0x%x not in dynamic memory", index));
+			}
+			if (this.undoLoggedBits != null) {
+				logUndo(index);
+			}
+			putDynamicByte(index, value);
+			dropSharedDataFrom(index);
+			if (this.isDynamicMemoryInstructionCached) {
+				invalidateInstructionCache((index - MAX_INSTRUCTION_LEN) + 1, index + 1);
+			}
 		}
 
 		public int getWord(int index) {
@@ -213,6 +702,111 @@ public class ZInterpreter {
 			return (hi << 8) | lo;
 		}
 
+		// for areas known to be in dynamic memory, such as global variables and the object table
+
+		public int getDynamicByte(int index) {
+			return this.memoryPages[index >>> MEMORY_PAGE_BITS][index & MEMORY_PAGE_MASK] & 0xFF;
+		}
+
+		public int getDynamicWord(int index) {
+			return (getDynamicByte(index) << 8) | getDynamicByte(index + 1);
+		}
+
+		private void putDynamicByte(int index, int value) { // copies a shared page first, marks the page dirty
+			int pageIndex = index >>> MEMORY_PAGE_BITS;
+			long pageBit = 1L << pageIndex;
+			if ((this.sharedPages[pageIndex >>> 6] & pageBit) != 0) {
+				this.memoryPages[pageIndex] = this.memoryPages[pageIndex].clone();
+				this.sharedPages[pageIndex >>> 6] &= ~pageBit;
+				this.numPagesCopied++;
+			}
+			this.memoryPages[pageIndex][index & MEMORY_PAGE_MASK] = (byte) value;
+			this.dirtyPages[pageIndex >>> 6] |= pageBit;
+			this.uncomparedPages[pageIndex >>> 6] |= pageBit;
+		}
+
+		// whole dynamic memory
+
+		private static byte[][] toMemoryPages(byte[] bytes) {
+			byte[][] result = new byte[(bytes.length + MEMORY_PAGE_SIZE - 1) >>> MEMORY_PAGE_BITS][];
+			for (int i = 0; i < result.length; i++) {
+				int start = i << MEMORY_PAGE_BITS;
+				result[i] = new byte[MEMORY_PAGE_SIZE];
+				System.arraycopy(bytes, start, result[i], 0, Math.min(MEMORY_PAGE_SIZE, bytes.length - start));
+			}
+			return result;
+		}
+
+		private int getNumMemoryPages() {
+			return (this.dynamicMemoryLength + MEMORY_PAGE_SIZE - 1) >>> MEMORY_PAGE_BITS;
+		}
+
+		private void setAllPageBits(long[] pageBits) {
+			int numPages = getNumMemoryPages();
+			for (int i = 0; i < pageBits.length; i++) {
+				int numBits = Math.min(64, numPages - (i * 64));
+				pageBits[i] = (numBits == 64) ? -1L : ((1L << numBits) - 1);
+			}
+		}
+
+		private void sharePristineMemory() {
+			this.memoryPages = this.storyFile.pristineMemoryPages.clone();
+			setAllPageBits(this.sharedPages);
+		}
+
+		public byte[] getDynamicMemory() { // a copy
+			byte[] result = new byte[this.dynamicMemoryLength];
+			for (int i = 0; i < this.memoryPages.length; i++) {
+				int start = i << MEMORY_PAGE_BITS;
+				System.arraycopy(this.memoryPages[i], 0, result, start, Math.min(MEMORY_PAGE_SIZE, result.length - start));
+			}
+			return result;
+		}
+
+		public void setDynamicMemory(byte[] bytes) { // call markAllDirty() and the like afterwards
+			// pages equal to the pristine ones are shared again, the others are copied
+
+			byte[] pristineMemory = this.storyFile.pristineDynamicMemory;
+			boolean isComparable = bytes.length == pristineMemory.length;
+			this.memoryPages = new byte[(bytes.length + MEMORY_PAGE_SIZE - 1) >>> MEMORY_PAGE_BITS][];
+			for (int i = 0; i < this.sharedPages.length; i++) {
+				this.sharedPages[i] = 0;
+			}
+			for (int i = 0; i < this.memoryPages.length; i++) {
+				int start = i << MEMORY_PAGE_BITS;
+				int end = Math.min(start + MEMORY_PAGE_SIZE, bytes.length);
+				if (isComparable && isRangeEqual(bytes, pristineMemory, start, end)) {
+					this.memoryPages[i] = this.storyFile.pristineMemoryPages[i];
+					this.sharedPages[i >>> 6] |= 1L << i;
+				} else {
+					this.memoryPages[i] = new byte[MEMORY_PAGE_SIZE];
+					System.arraycopy(bytes, start, this.memoryPages[i], 0, end - start);
+				}
+			}
+			Abbreviations abbreviations = this.storyFile.getAbbreviations(this);
+			this.abbreviations = abbreviations.source.isUnchanged(bytes, pristineMemory) ? abbreviations : null;
+			PropertyIndex propertyIndex = this.storyFile.getPropertyIndex(this);
+			this.propertyIndex = propertyIndex.source.isUnchanged(bytes, pristineMemory) ? propertyIndex : null;
+		}
+
+		private void dropSharedDataFrom(int index) { // call after writing to dynamic memory
+			if ((this.abbreviations != null) && this.abbreviations.source.contains(index)) {
+				this.abbreviations = null; // the game rewrites an abbreviation, decode on demand from now on
+			}
+			if ((this.propertyIndex != null) && this.propertyIndex.source.contains(index)) {
+				this.propertyIndex = null; // the game moves properties, look them up on demand from now on
+			}
+		}
+
+		private static boolean isRangeEqual(byte[] bytes1, byte[] bytes2, int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (bytes1[i] != bytes2[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
 		public void setWord(int index, int value) {
 			int hi = value >> 8;
 			int lo = value;
@@ -244,10 +838,6 @@ public class ZInterpreter {
 
 		// consume bytes, words, ...
 
-		public int peekByte() {
-			return getByte(this.pc);
-		}
-
 		public int consumeByte() {
 			int result = getByte(this.pc);
 			this.pc++;
@@ -260,54 +850,271 @@ public class ZInterpreter {
 			return (hi << 8) | lo;
 		}
 
-		public String consumeString() {
-			String str = decodeZString(this.pc);
-			do {
-				int word = consumeWord();
-				if (isBitSet(word, 15)) {
-					break;
+		public void consumeString(StringBuffer out) {
+			this.pc = printZString(this.pc, out);
+		}
+
+		// decoded instructions
+
+		//	Opcodes storing a result or branching, as bit masks over the opcode numbers
+		//
+		//	        store                          branch
+		//	0OP     -                              save, restore, verify
+		//	1OP     get_sibling, get_child,        jz, get_sibling, get_child
+		//	        get_parent, get_prop_len,
+		//	        load, not
+		//	2OP     or, and, loadw, loadb,         je, jl, jg, dec_chk, inc_chk,
+		//	        get_prop, get_prop_addr,       jin, test, test_attr
+		//	        get_next_prop, add, sub,
+		//	        mul, div, mod
+		//	VAR     call, random                   -
+
+		private final static int[] STORE_OPCODES = { //
+				0, //
+				(1 << 0x01) | (1 << 0x02) | (1 << 0x03) | (1 << 0x04) | (1 << 0x0E) | (1 << 0x0F), //
+				(1 << 0x08) | (1 << 0x09) | (0b11_1111_1111 << 0x0F), //
+				(1 << 0x00) | (1 << 0x07) //
+		};
+
+		private final static int[] BRANCH_OPCODES = { //
+				(1 << 0x05) | (1 << 0x06) | (1 << 0x0D), //
+				(1 << 0x00) | (1 << 0x01) | (1 << 0x02), //
+				(0b111_1111 << 0x01) | (1 << 0x0A), //
+				0 //
+		};
+
+		//	Opcodes ending a routine's code unless jumped over, and opcodes
+		//	left to the interpreter as they replace the machine state or wait for input
+		//
+		//	        terminating                    interpreted only
+		//	0OP     rtrue, rfalse, print_ret,      save, restore, restart, quit
+		//	        restart, ret_popped, quit
+		//	1OP     ret, jump                      -
+		//	VAR     -                              sread
+
+		private final static int[] TERMINATING_OPCODES = { //
+				(1 << 0x00) | (1 << 0x01) | (1 << 0x03) | (1 << 0x07) | (1 << 0x08) | (1 << 0x0A), //
+				(1 << 0x0B) | (1 << 0x0C), //
+				0, //
+				0 //
+		};
+
+		private final static int[] INTERPRETED_OPCODES = { //
+				(1 << 0x05) | (1 << 0x06) | (1 << 0x07) | (1 << 0x0A), //
+				0, //
+				0, //
+				(1 << 0x04) //
+		};
+
+		private final static String[][] OPCODE_NAMES = { //
+				{ "rtrue", "rfalse", "print", "print_ret", "nop", "save", "restore", "restart", "ret_popped", "pop", "quit", "new_line", "show_status", "verify" }, //
+				{ "jz", "get_sibling", "get_child", "get_parent", "get_prop_len", "inc", "dec", "print_addr", null, "remove_obj", "print_obj", "ret", "jump", "print_paddr", "load", "not" }, //
+				{ null, "je", "jl", "jg", "dec_chk", "inc_chk", "jin", "test", "or", "and", "test_attr", "set_attr", "clear_attr", "store", "insert_obj", "loadw", "loadb", "get_prop", "get_prop_addr", "get_next_prop", "add", "sub", "mul", "div", "mod" }, //
+				{ "call", "storew", "storeb", "put_prop", "sread", "print_char", "print_num", "random", "push", "pull", "split_window", "set_window", null, null, null, null, null, null, null, "output_stream", "input_stream", "sound_effect" } //
+		};
+
+		public String getOpcodeName(int operandCount, int opCodeNr) {
+			String[] names = OPCODE_NAMES[operandCount];
+			if ((opCodeNr < names.length) && (names[opCodeNr] != null)) {
+				return names[opCodeNr];
+			}
+			String[] operandCountNames = { "0OP", "1OP", "2OP", "VAR" };
+			return String.format("%s:0x%x", operandCountNames[operandCount], opCodeNr);
+		}
+
+		public Instruction getInstruction(int addr) {
+			Instruction[] page = this.instructionCache[addr >> CACHE_PAGE_BITS];
+			Instruction instr = (page != null) ? page[addr & CACHE_PAGE_MASK] : null;
+			if (instr == null) {
+				instr = decodeInstructions(addr);
+			}
+			return instr;
+		}
+
+		private Instruction decodeInstructions(int addr) {
+			// decodes the instruction at addr into the cache, together with the straight-line code
+			// following it, then fuses them back to front, so that superinstructions are made of
+			// the cached instructions
+
+			List<Instruction> instrs = new ArrayList<Instruction>();
+			Instruction instr = decodeInstruction(addr);
+			cacheInstruction(instr);
+			instrs.add(instr);
+			while (isFollowedByFusible(instr) && (getCachedInstruction(instr.nextAddr) == null)) {
+				instr = decodeInstruction(instr.nextAddr);
+				cacheInstruction(instr);
+				instrs.add(instr);
+			}
+			for (int i = instrs.size() - 1; i >= 0; i--) {
+				fuseInstructions(instrs.get(i));
+			}
+			return instrs.get(0);
+		}
+
+		private Instruction getCachedInstruction(int addr) {
+			Instruction[] page = this.instructionCache[addr >> CACHE_PAGE_BITS];
+			return (page != null) ? page[addr & CACHE_PAGE_MASK] : null;
+		}
+
+		private void cacheInstruction(Instruction instr) {
+			Instruction[] page = this.instructionCache[instr.addr >> CACHE_PAGE_BITS];
+			if (page == null) {
+				page = new Instruction[CACHE_PAGE_SIZE];
+				this.instructionCache[instr.addr >> CACHE_PAGE_BITS] = page;
+			}
+			page[instr.addr & CACHE_PAGE_MASK] = instr;
+			if (isDynamicMemory(instr.addr)) {
+				this.isDynamicMemoryInstructionCached = true;
+			}
+		}
+
+		public void invalidateInstructionCache(int fromAddr, int toAddr) {
+			int from = Math.max(fromAddr, 0);
+			int to = Math.min(toAddr, this.storyLength);
+			for (int i = from; i < to; i++) {
+				Instruction[] page = this.instructionCache[i >> CACHE_PAGE_BITS];
+				if (page != null) {
+					page[i & CACHE_PAGE_MASK] = null;
 				}
-			} while (true);
-			return str;
+			}
 		}
 
-		public int consumeOperand(int opType) {
-			int result = -1;
-			switch (opType) {
-				case OPERAND_SMALL:
-					result = consumeByte(); // do we expect signed values here?
-					break;
-				case OPERAND_LARGE:
-					result = consumeWord();
-					break;
-				case OPERAND_VARIABLE:
-					int varNumber = consumeByte();
-					result = getVariableValue(varNumber);
-					break;
-				default:
-					halt(String.format("consumeOperand() - Invalid operand type 0x%x", opType));
-					break;
+		public void invalidateDynamicMemoryInstructions() {
+			if (this.isDynamicMemoryInstructionCached) {
+				invalidateInstructionCache(0, this.header.baseStaticMemoryAddr);
+				this.isDynamicMemoryInstructionCached = false;
 			}
-			return result;
 		}
 
-		public int[] consumeOperands(int opTypes) {
-			int[] aTmp = new int[4];
-			int cnt = 0;
+		private Instruction decodeInstruction(int addr) {
+			Instruction instr = new Instruction();
+			instr.addr = addr;
 
-			for (int i = 6; i >= 0; i -= 2) {
-				int opType = (opTypes >> i) & 0b11;
-				if (opType == ZMachine.OPERAND_OMITTED) {
-					break;
+			int index = addr;
+			int opCode = getByte(index++);
+			instr.opCode = opCode;
+
+			int form = (opCode >> 6) & 0b11;
+			if (form == 0b10) { // short form
+				int opType = (opCode >> 4) & 0b11;
+				instr.opCodeNr = opCode & 0b1111;
+				if (opType == OPERAND_OMITTED) {
+					instr.operandCount = OPCOUNT_0OP;
+				} else {
+					instr.operandCount = OPCOUNT_1OP;
+					instr.operandTypes[0] = opType;
+					instr.numOperands = 1;
+				}
+			} else if (form == 0b11) { // variable form
+				instr.opCodeNr = opCode & 0b1_1111;
+				instr.operandCount = isBitClear(opCode, 5) ? OPCOUNT_2OP : OPCOUNT_VAR;
+				int opTypes = getByte(index++);
+				for (int i = 6; i >= 0; i -= 2) {
+					int opType = (opTypes >> i) & 0b11;
+					if (opType == OPERAND_OMITTED) {
+						break;
+					}
+					instr.operandTypes[instr.numOperands] = opType;
+					instr.numOperands++;
 				}
-				int opValue = consumeOperand(opType);
-				aTmp[cnt] = opValue;
-				cnt++;
+			} else { // long form
+				instr.opCodeNr = opCode & 0b1_1111;
+				instr.operandCount = OPCOUNT_2OP;
+				instr.operandTypes[0] = isBitClear(opCode, 6) ? OPERAND_SMALL : OPERAND_VARIABLE;
+				instr.operandTypes[1] = isBitClear(opCode, 5) ? OPERAND_SMALL : OPERAND_VARIABLE;
+				instr.numOperands = 2;
 			}
 
-			int[] result = new int[cnt];
-			System.arraycopy(aTmp, 0, result, 0, cnt);
-			return result;
+			for (int i = 0; i < instr.numOperands; i++) {
+				if (instr.operandTypes[i] == OPERAND_LARGE) {
+					instr.operandValues[i] = getWord(index);
+					index += 2;
+				} else {
+					instr.operandValues[i] = getByte(index++);
+				}
+			}
+			instr.operandsEndAddr = index;
+
+			instr.storeVarNumber = -1;
+			instr.branchTargetAddr = -1;
+			instr.branchIndex = -1;
+			if (isBitSet(STORE_OPCODES[instr.operandCount], instr.opCodeNr)) {
+				instr.storeVarNumber = getByte(index++);
+			}
+
+			if (isBitSet(BRANCH_OPCODES[instr.operandCount], instr.opCodeNr)) {
+				int branchByte1 = getByte(index++);
+				instr.isBranchOnTrue = isBitSet(branchByte1, 7);
+				boolean hasBranchByte2 = isBitClear(branchByte1, 6);
+				int offset = branchByte1 & 0b11_1111;
+				if (hasBranchByte2) {
+					int branchByte2 = getByte(index++);
+					offset = (offset << 8) | branchByte2;
+					if (isBitSet(offset, 13)) {
+						offset |= 0xC000; // sign extension
+					}
+				}
+				if ((offset == 0) || (offset == 1)) {
+					instr.branchReturnValue = offset;
+				} else {
+					instr.branchTargetAddr = (index + toInt32(offset)) - 2;
+				}
+			}
+
+			if (instr.operandCount == OPCOUNT_0OP) {
+				boolean isPrintOrPrintRet = (instr.opCodeNr == 0x02) || (instr.opCodeNr == 0x03);
+				if (isPrintOrPrintRet) {
+					index = getZStringEndAddr(index);
+				}
+			} else if (instr.operandCount == OPCOUNT_1OP) {
+				boolean isConstantJump = (instr.opCodeNr == 0x0C) && (instr.operandTypes[0] != OPERAND_VARIABLE);
+				if (isConstantJump) {
+					instr.branchTargetAddr = (index + toInt32(instr.operandValues[0])) - 2;
+				}
+			}
+			instr.nextAddr = index;
+
+			return instr;
+		}
+
+		public void beginInstruction(Instruction instr) {
+			this.instruction = instr;
+			this.pc = instr.operandsEndAddr;
+
+			// operands are evaluated in place, the slots of omitted operands keep stale values
+			for (int i = 0; i < instr.numOperands; i++) {
+				int value = instr.operandValues[i];
+				if (instr.operandTypes[i] == OPERAND_VARIABLE) {
+					value = getVariableValue(value);
+				}
+				this.operands[i] = value;
+			}
+			this.numOperands = instr.numOperands;
+		}
+
+		public int getOperand(Instruction instr, int index) { // evaluates an operand without the operand slots
+			int value = instr.operandValues[index];
+			if (instr.operandTypes[index] == OPERAND_VARIABLE) {
+				value = getVariableValue(value);
+			}
+			return value;
+		}
+
+		public void store(int value) {
+			this.pc = this.instruction.nextAddr;
+			setVariableValue(this.instruction.storeVarNumber, value);
+		}
+
+		public void branch(boolean isBranch) {
+			Instruction instr = this.instruction;
+			this.pc = instr.nextAddr;
+			if (isBranch == instr.isBranchOnTrue) {
+				if (instr.branchTargetAddr == -1) {
+					zmreturn(instr.branchReturnValue);
+				} else {
+					this.pc = instr.branchTargetAddr;
+				}
+			}
 		}
 
 		public void consumeAndStore(int value) {
@@ -341,11 +1148,29 @@ public class ZInterpreter {
 		// get/set variable values
 
 		public int getVariableValue(int varNumber) {
-			int value = -1;
-			if (varNumber == 0) {
-				value = this.stack.pop();
-			} else if ((varNumber >= 1) && (varNumber <= 15)) {
-				value = getLocalVariableValue(varNumber);
+			if (this.isStrict) {
+				return getVariableValueChecked(varNumber);
+			}
+
+			if (varNumber >= 16) {
+				if (varNumber <= 255) {
+					return getDynamicWord(this.globalVariablesBaseAddr + (varNumber * WORD_SIZE));
+				}
+			} else if (varNumber >= 1) {
+				return this.stack.stack[this.localsIndex + varNumber];
+			} else if (varNumber == 0) {
+				return this.stack.pop();
+			}
+			halt(String.format("getVariableValue() - Variable number %d out of bounds [%d..%d]", varNumber, 1, 255));
+			return -1;
+		}
+
+		private int getVariableValueChecked(int varNumber) {
+			int value = -1;
+			if (varNumber == 0) {
+				value = this.stack.pop();
+			} else if ((varNumber >= 1) && (varNumber <= 15)) {
+				value = getLocalVariableValue(varNumber);
 			} else if ((varNumber >= 16) && (varNumber <= 255)) {
 				value = getGlobalVariableValue(varNumber);
 			} else {
@@ -355,11 +1180,11 @@ public class ZInterpreter {
 		}
 
 		private int getLocalVariableIndex(int localVarNumber /* 1..15 */) {
-			int numLocalVars = this.stack.peek(this.stack.stackFrameIndex + 1);
+			int numLocalVars = this.numLocals;
 			if ((localVarNumber < 1) || (localVarNumber > numLocalVars)) {
 				halt(String.format("getLocalVariableAddress() - Local variable number %d out of bounds [%d..%d]", localVarNumber, 1, numLocalVars));
 			}
-			int localIndex = this.stack.stackFrameIndex + 1 + localVarNumber;
+			int localIndex = this.localsIndex + localVarNumber;
 			return localIndex;
 		}
 
@@ -379,11 +1204,32 @@ public class ZInterpreter {
 
 		private int getGlobalVariableValue(int globalVarNumber /* 16..255 */) {
 			int globalAddr = getGlobalVariableAddress(globalVarNumber);
-			int value = getWord(globalAddr);
+			int value = getDynamicWord(globalAddr);
 			return value;
 		}
 
 		public void setVariableValue(int varNumber, int value) {
+			if (this.isStrict) {
+				setVariableValueChecked(varNumber, value);
+				return;
+			}
+
+			if (varNumber >= 16) {
+				if (varNumber <= 255) {
+					setWord(this.globalVariablesBaseAddr + (varNumber * WORD_SIZE), value);
+					return;
+				}
+			} else if (varNumber >= 1) {
+				this.stack.stack[this.localsIndex + varNumber] = value;
+				return;
+			} else if (varNumber == 0) {
+				this.stack.push(value);
+				return;
+			}
+			halt(String.format("setVariableValue() - Variable number %d out of bounds [%d..%d]", varNumber, 1, 255));
+		}
+
+		private void setVariableValueChecked(int varNumber, int value) {
 			if (varNumber == 0) {
 				this.stack.push(value);
 			} else if ((varNumber >= 1) && (varNumber <= 15)) {
@@ -405,9 +1251,302 @@ public class ZInterpreter {
 			setWord(globalAddr, value);
 		}
 
+		// routines
+
+		private Routine getRoutine(int routineAddr) {
+			int index = routineAddr / 2;
+			Routine[] page = this.routineCache[index >> CACHE_PAGE_BITS];
+			Routine routine = (page != null) ? page[index & CACHE_PAGE_MASK] : null;
+			if (routine == null) {
+				routine = new Routine();
+				routine.addr = routineAddr;
+				routine.numLocals = getByte(routineAddr);
+				routine.defaultValues = new int[routine.numLocals];
+				for (int i = 0; i < routine.numLocals; i++) {
+					routine.defaultValues[i] = getWord(routineAddr + 1 + (i * WORD_SIZE));
+				}
+				routine.codeAddr = routineAddr + 1 + (routine.numLocals * WORD_SIZE);
+				routine.callCount = 0;
+				if (isDynamicMemory(routineAddr) == false) { // writable routines are read anew on each call
+					if (page == null) {
+						page = new Routine[CACHE_PAGE_SIZE];
+						this.routineCache[index >> CACHE_PAGE_BITS] = page;
+					}
+					page[index & CACHE_PAGE_MASK] = routine;
+				}
+			}
+			return routine;
+		}
+
+		private void countCall(Routine routine) {
+			routine.callCount++;
+			if (isDynamicMemory(routine.addr)) {
+				return; // writable routines are always interpreted
+			}
+			if (routine.callCount == this.threadThreshold) {
+				threadRoutine(routine);
+			}
+			if (routine.callCount == this.compileThreshold) {
+				compileRoutine(routine);
+			}
+		}
+
+		private List<Instruction> decodeRoutineCode(int codeAddr, boolean isCached) {
+			// decode the routine's code up to a terminating instruction not jumped over
+
+			List<Instruction> instrs = new ArrayList<Instruction>();
+			int addr = codeAddr;
+			int maxTargetAddr = addr;
+			while (true) {
+				if ((addr + MAX_INSTRUCTION_LEN) > this.storyLength) {
+					return null; // not decodable
+				}
+				Instruction instr = isCached ? getInstruction(addr) : decodeInstruction(addr);
+				instrs.add(instr);
+				maxTargetAddr = Math.max(maxTargetAddr, instr.branchTargetAddr);
+				addr = instr.nextAddr;
+
+				if (isTerminating(instr) && (addr > maxTargetAddr)) {
+					return instrs;
+				}
+			}
+		}
+
+		private void threadRoutine(Routine routine) {
+			List<Instruction> instrs = decodeRoutineCode(routine.codeAddr, /* isCached */ true);
+			if (instrs == null) {
+				return; // not decodable
+			}
+			for (Instruction instr : instrs) {
+				if (instr.routine != null) {
+					return; // code shared with a routine already threaded
+				}
+			}
+
+			Instruction[] code = new Instruction[instrs.size()];
+			for (int i = 0; i < code.length; i++) {
+				Instruction instr = instrs.get(i);
+				if (isInterpretedOnly(instr) == false) {
+					instr.routine = routine;
+					instr.routineIndex = i;
+					instr.branchIndex = findInstructionIndex(instrs, instr.branchTargetAddr);
+					code[i] = instr;
+				}
+			}
+			routine.code = code;
+		}
+
+		private void compileRoutine(Routine routine) {
+			List<Instruction> instrs = decodeRoutineCode(routine.codeAddr, /* isCached */ true);
+			if (instrs == null) {
+				return; // not decodable
+			}
+			int[] entryAddrs = RoutineCompiler.getEntryAddrs(this, instrs);
+			for (int entryAddr : entryAddrs) {
+				if (getInstruction(entryAddr).compiledRoutine != null) {
+					return; // code shared with a routine already compiled
+				}
+			}
+
+			CompiledRoutine compiledRoutine = this.storyFile.getCompiledRoutine(this, routine, instrs);
+			if (compiledRoutine == null) {
+				return; // not compilable
+			}
+			for (int entryAddr : entryAddrs) {
+				getInstruction(entryAddr).compiledRoutine = compiledRoutine;
+			}
+			this.numRoutinesCompiled++;
+		}
+
+		private int findInstructionIndex(List<Instruction> instrs, int addr) {
+			int lo = 0;
+			int hi = instrs.size() - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int midAddr = instrs.get(mid).addr;
+				if (midAddr < addr) {
+					lo = mid + 1;
+				} else if (midAddr > addr) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		private boolean isTerminating(Instruction instr) {
+			return isBitSet(TERMINATING_OPCODES[instr.operandCount], instr.opCodeNr);
+		}
+
+		private boolean isInterpretedOnly(Instruction instr) {
+			return isBitSet(INTERPRETED_OPCODES[instr.operandCount], instr.opCodeNr);
+		}
+
+		// superinstructions
+
+		private final static int MAX_SUPERINSTRUCTION_PAIRS = 8;
+		private final static int MAX_SUPERINSTRUCTION_TRIPLES = 8;
+		private final static int MIN_SUPERINSTRUCTION_STATIC_COUNT = 4;
+
+		private int getOpcodeId(Instruction instr) {
+			return (instr.operandCount << 5) | instr.opCodeNr; // 0..127
+		}
+
+		private boolean isFusible(Instruction instr) {
+			// only the last instruction of a superinstruction may leave the straight-line code
+			boolean isCall = (instr.operandCount == OPCOUNT_VAR) && (instr.opCodeNr == 0x00);
+			return (isTerminating(instr) == false) && (isInterpretedOnly(instr) == false) && (isCall == false);
+		}
+
+		private SuperinstructionTables selectSuperinstructions() {
+			// count instruction pairs and triples in all routines reachable from the initial pc by calls to constant addresses
+
+			Map<Integer, Integer> pairCounts = new HashMap<Integer, Integer>();
+			Map<Integer, Integer> tripleCounts = new HashMap<Integer, Integer>();
+
+			Set<Integer> visitedCodeAddrs = new HashSet<Integer>();
+			Deque<Integer> codeAddrsToVisit = new ArrayDeque<Integer>();
+			codeAddrsToVisit.push(this.header.initialPC);
+			while (codeAddrsToVisit.isEmpty() == false) {
+				int codeAddr = codeAddrsToVisit.pop();
+				if (visitedCodeAddrs.add(codeAddr) == false) {
+					continue;
+				}
+
+				List<Instruction> instrs = decodeRoutineCode(codeAddr, /* isCached */ false);
+				if (instrs == null) {
+					continue;
+				}
+
+				for (int i = 0; i < instrs.size(); i++) {
+					Instruction instr = instrs.get(i);
+
+					boolean isCallToConstant = (instr.operandCount == OPCOUNT_VAR) && (instr.opCodeNr == 0x00) && (instr.operandTypes[0] == OPERAND_LARGE);
+					if (isCallToConstant) {
+						int routineAddr = getUnpackedAddress(instr.operandValues[0]);
+						if ((routineAddr > 0) && (routineAddr < this.header.lengthOfFile) && (getByte(routineAddr) <= 15)) {
+							codeAddrsToVisit.push(routineAddr + 1 + (getByte(routineAddr) * WORD_SIZE));
+						}
+					}
+
+					if ((isFusible(instr) == false) || isDynamicMemory(instr.addr)) {
+						continue;
+					}
+					if ((i + 1) < instrs.size()) {
+						int pairKey = (getOpcodeId(instr) << 7) | getOpcodeId(instrs.get(i + 1));
+						pairCounts.merge(pairKey, 1, Integer::sum);
+
+						if (((i + 2) < instrs.size()) && isFusible(instrs.get(i + 1))) {
+							int tripleKey = (pairKey << 7) | getOpcodeId(instrs.get(i + 2));
+							tripleCounts.merge(tripleKey, 1, Integer::sum);
+						}
+					}
+				}
+			}
+
+			SuperinstructionTables result = new SuperinstructionTables();
+			result.numSuperinstructions = 0;
+			result.pairs = createSuperinstructions(result, pairCounts, 2, MAX_SUPERINSTRUCTION_PAIRS);
+			result.triples = createSuperinstructions(result, tripleCounts, 3, MAX_SUPERINSTRUCTION_TRIPLES);
+
+			result.isStart = new boolean[128];
+			for (int pairKey : result.pairs.keySet()) {
+				result.isStart[pairKey >> 7] = true;
+			}
+			for (int tripleKey : result.triples.keySet()) {
+				result.isStart[tripleKey >> 14] = true;
+			}
+			return result;
+		}
+
+		private Map<Integer, Superinstruction> createSuperinstructions(SuperinstructionTables tables, Map<Integer, Integer> counts, int numInstructions, int maxSuperinstructions) {
+			List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>(counts.entrySet());
+			entries.sort((e1, e2) -> Integer.compare(e2.getValue(), e1.getValue()));
+
+			Map<Integer, Superinstruction> result = new HashMap<Integer, Superinstruction>();
+			for (Map.Entry<Integer, Integer> entry : entries) {
+				if ((result.size() == maxSuperinstructions) || (entry.getValue() < MIN_SUPERINSTRUCTION_STATIC_COUNT)) {
+					break;
+				}
+
+				StringBuffer name = new StringBuffer();
+				for (int i = numInstructions - 1; i >= 0; i--) {
+					int opcodeId = (entry.getKey() >> (i * 7)) & 0b111_1111;
+					name.append(getOpcodeName(opcodeId >> 5, opcodeId & 0b1_1111));
+					if (i > 0) {
+						name.append("+");
+					}
+				}
+
+				Superinstruction superinstr = new Superinstruction();
+				superinstr.id = tables.numSuperinstructions++;
+				superinstr.name = name.toString();
+				superinstr.staticCount = entry.getValue();
+				result.put(entry.getKey(), superinstr);
+			}
+			return result;
+		}
+
+		private boolean isFollowedByFusible(Instruction instr) {
+			// the instruction is fusible with what follows, which lies within the story
+			return isFusible(instr) && (isDynamicMemory(instr.addr) == false) && ((instr.nextAddr + (2 * MAX_INSTRUCTION_LEN)) <= this.storyLength);
+		}
+
+		private void fuseInstructions(Instruction instr) {
+			// the fused instructions come from the cache, where decodeInstructions() has put them
+			if ((this.superinstructions.isStart[getOpcodeId(instr)] == false) || (isFollowedByFusible(instr) == false)) {
+				return;
+			}
+
+			Instruction instr2 = getInstruction(instr.nextAddr);
+			int pairKey = (getOpcodeId(instr) << 7) | getOpcodeId(instr2);
+			if (isFusible(instr2)) {
+				Instruction instr3 = getInstruction(instr2.nextAddr);
+				Superinstruction superinstr = this.superinstructions.triples.get((pairKey << 7) | getOpcodeId(instr3));
+				if (superinstr != null) {
+					instr.superinstruction = superinstr;
+					instr.fusedInstructions = new Instruction[] { instr, instr2, instr3 };
+					instr.isTestedByNextJz = isTestedByJz(instr, instr2);
+					instr2.isTestedByNextJz = isTestedByJz(instr2, instr3);
+					return;
+				}
+			}
+
+			Superinstruction superinstr = this.superinstructions.pairs.get(pairKey);
+			if (superinstr != null) {
+				instr.superinstruction = superinstr;
+				instr.fusedInstructions = new Instruction[] { instr, instr2 };
+				instr.isTestedByNextJz = isTestedByJz(instr, instr2);
+			}
+		}
+
+		private boolean isTestedByJz(Instruction instr, Instruction nextInstr) {
+			// load -> sp, then jz sp: the loaded value can skip the stack
+			boolean isLoad = (instr.operandCount == OPCOUNT_2OP) && ((instr.opCodeNr == 0x0F) || (instr.opCodeNr == 0x10) || (instr.opCodeNr == 0x11));
+			boolean isJz = (nextInstr.operandCount == OPCOUNT_1OP) && (nextInstr.opCodeNr == 0x00);
+			return isLoad && (instr.storeVarNumber == 0) && isJz && (nextInstr.operandTypes[0] == OPERAND_VARIABLE) && (nextInstr.operandValues[0] == 0);
+		}
+
+		// restart
+
+		public void restart() {
+			sharePristineMemory();
+			this.abbreviations = this.storyFile.getAbbreviations(this);
+			this.propertyIndex = this.storyFile.getPropertyIndex(this);
+			clearPageBits(this.dirtyPages); // pristine memory again
+			setAllPageBits(this.uncomparedPages);
+			invalidateDynamicMemoryInstructions();
+			rebuildObjectIndex();
+			clearUndo();
+			this.stack.reset();
+			updateFrameCache();
+			this.pc = this.header.initialPC;
+		}
+
 		// call/return
 
-		public void zmcall(int[] args) {
+		public void zmcall(int[] args, int numArgs) {
 			// arg[0] = packed routine address, arg[1]..[3] = word arguments
 
 			int routineAddr = getUnpackedAddress(args[0]);
@@ -425,23 +1564,30 @@ public class ZInterpreter {
 				return;
 			}
 
-			int routineCodeAddr = routineAddr + 1 + (numLocals * WORD_SIZE);
+			Routine routine = getRoutine(routineAddr);
+			countCall(routine);
 
 			this.stack.pushInt32(this.pc);
 			this.stack.push(this.stack.stackFrameIndex);
 			this.stack.stackFrameIndex = this.stack.topIndex;
 			this.stack.push(numLocals);
 			for (int i = 1; i <= numLocals; i++) {
-				int defaultValueAddr = routineAddr + 1 + ((i - 1) * WORD_SIZE);
-				int defaultValue = getWord(defaultValueAddr);
-				int value = (i < args.length) ? args[i] : defaultValue;
+				int value = (i < numArgs) ? args[i] : routine.defaultValues[i - 1];
 				this.stack.push(value);
 			}
+			this.localsIndex = this.stack.stackFrameIndex + 1;
+			this.numLocals = numLocals;
 
-			this.pc = routineCodeAddr;
+			this.pc = routine.codeAddr;
 			// implicit store operation done in zmreturn()
 		}
 
+		public void updateFrameCache() { // call after the stack frame changed other than by zmcall() or zmreturn()
+			int frameIndex = this.stack.stackFrameIndex;
+			this.localsIndex = frameIndex + 1;
+			this.numLocals = (frameIndex == -1) ? 0 : this.stack.stack[frameIndex + 1];
+		}
+
 		public void zmreturn(int arg) {
 			if (this.stack.stackFrameIndex == -1) {
 				halt("zmreturn() - Call stack underflow");
@@ -450,6 +1596,7 @@ public class ZInterpreter {
 			this.stack.topIndex = this.stack.stackFrameIndex;
 			this.stack.stackFrameIndex = this.stack.pop();
 			this.pc = this.stack.popInt32();
+			updateFrameCache();
 
 			consumeAndStore(arg);
 		}
@@ -509,7 +1656,7 @@ public class ZInterpreter {
 
 		public int getParentNumber(int objNumber) {
 			int objAddr = getObjectAddress(objNumber);
-			int parentNumber = getByte(objAddr + OFFSET_PARENT);
+			int parentNumber = getDynamicByte(objAddr + OFFSET_PARENT);
 			return parentNumber;
 		}
 
@@ -520,7 +1667,7 @@ public class ZInterpreter {
 
 		public int getSiblingNumber(int objNumber) {
 			int objAddr = getObjectAddress(objNumber);
-			int siblingNumber = getByte(objAddr + OFFSET_SIBLING);
+			int siblingNumber = getDynamicByte(objAddr + OFFSET_SIBLING);
 			return siblingNumber;
 		}
 
@@ -531,7 +1678,7 @@ public class ZInterpreter {
 
 		public int getChildNumber(int objNumber) {
 			int objAddr = getObjectAddress(objNumber);
-			int childNumber = getByte(objAddr + OFFSET_FIRST_CHILD);
+			int childNumber = getDynamicByte(objAddr + OFFSET_FIRST_CHILD);
 			return childNumber;
 		}
 
@@ -540,6 +1687,207 @@ public class ZInterpreter {
 			setByte(objAddr + OFFSET_FIRST_CHILD, childNumber);
 		}
 
+		// attributes
+
+		//	+--------+--------+--------+--------+
+		//	|01234567|89......|........|......31| attribute numbers, the first one in bit 7 of its byte
+		//	+--------+--------+--------+--------+
+
+		public static final int NUM_ATTRIBUTES = 32;
+
+		private static int getAttributeMask(int attrNumber) { // within the attribute's byte
+			return 0x80 >> (attrNumber & 0b111);
+		}
+
+		public boolean isAttributeSet(int objNumber, int attrNumber) { // reads the attribute's byte only
+			int objAddr = getObjectAddress(objNumber);
+			return (getDynamicByte(objAddr + (attrNumber >> 3)) & getAttributeMask(attrNumber)) != 0;
+		}
+
+		public void setAttribute(int objNumber, int attrNumber, boolean isSet) {
+			int objAddr = getObjectAddress(objNumber);
+			int byteOffset = attrNumber >> 3;
+			int aByte = getDynamicByte(objAddr + byteOffset);
+			int mask = getAttributeMask(attrNumber);
+			setByte(objAddr + byteOffset, isSet ? (aByte | mask) : (aByte & ~mask));
+		}
+
+		public int[] objectsWithAttribute(int attrNumber) { // returns the numbers of all objects that have the attribute set
+			if ((attrNumber < 0) || (attrNumber >= NUM_ATTRIBUTES)) {
+				halt(String.format("objectsWithAttribute() - Attribute number %d out of bounds [%d..%d]", attrNumber, 0, NUM_ATTRIBUTES - 1));
+			}
+
+			int byteOffset = attrNumber >> 3;
+			int mask = getAttributeMask(attrNumber);
+			int numObjects = getNumObjects();
+			int[] objNumbers = new int[numObjects];
+			int numFound = 0;
+			int objAddr = getObjectAddress(1);
+			for (int objNumber = 1; objNumber <= numObjects; objNumber++) {
+				if ((getDynamicByte(objAddr + byteOffset) & mask) != 0) {
+					objNumbers[numFound++] = objNumber;
+				}
+				objAddr += OBJECT_ELEMENT_SIZE;
+			}
+
+			int[] result = new int[numFound];
+			System.arraycopy(objNumbers, 0, result, 0, numFound);
+			return result;
+		}
+
+		// previous sibling index, maintained by insert_obj and remove_obj
+
+		private static final int OFFSET_PROPERTIES = 7;
+
+		private int[] prevSiblingNumbers; // indexed by object number, null = no index
+
+		public void enableObjectIndex() {
+			this.prevSiblingNumbers = new int[256];
+			rebuildObjectIndex();
+		}
+
+		public void rebuildObjectIndex() {
+			if (this.prevSiblingNumbers == null) {
+				return;
+			}
+
+			for (int i = 0; i < this.prevSiblingNumbers.length; i++) {
+				this.prevSiblingNumbers[i] = 0;
+			}
+			int numObjects = getNumObjects();
+			for (int objNumber = 1; objNumber <= numObjects; objNumber++) {
+				int siblingNumber = getSiblingNumber(objNumber);
+				if (siblingNumber != 0) {
+					this.prevSiblingNumbers[siblingNumber] = objNumber;
+				}
+			}
+		}
+
+		private int getNumObjects() {
+			// the object table ends where the first property table begins
+			int objAddr = getObjectAddress(1);
+			int firstPropAddr = getWord(objAddr + OFFSET_PROPERTIES);
+			int numObjects = 0;
+			while ((objAddr < firstPropAddr) && (numObjects < 255)) {
+				firstPropAddr = Math.min(firstPropAddr, getWord(objAddr + OFFSET_PROPERTIES));
+				numObjects++;
+				objAddr += OBJECT_ELEMENT_SIZE;
+			}
+			return numObjects;
+		}
+
+		public int getPrevSiblingNumber(int objNumber, int firstChildNumber) {
+			if (this.prevSiblingNumbers != null) {
+				int prevObjNumber = this.prevSiblingNumbers[objNumber];
+				if ((prevObjNumber != 0) && (getSiblingNumber(prevObjNumber) == objNumber)) {
+					return prevObjNumber;
+				}
+				// links were changed behind the index, e.g. by storeb
+			}
+
+			int prevObjNumber = firstChildNumber;
+			while (getSiblingNumber(prevObjNumber) != objNumber) {
+				prevObjNumber = getSiblingNumber(prevObjNumber);
+			}
+			return prevObjNumber;
+		}
+
+		// property addresses
+
+		// Games rarely move properties, so the address of each property is looked up once
+		// per object and story, as long as the machine keeps the pristine property layout.
+
+		public int getPropertyAddress(int objNumber, int propNumber) { // propNumber 0 = first property, returns 0 if not found
+			PropertyIndex propertyIndex = this.propertyIndex;
+			if ((propertyIndex == null) || (objNumber > propertyIndex.numObjects)) {
+				return findPropertyAddress(objNumber, propNumber);
+			}
+
+			int[] propAddrs = propertyIndex.propertyAddresses.get(objNumber);
+			if (propAddrs == null) {
+				propAddrs = createPropertyAddresses(objNumber);
+				propertyIndex.propertyAddresses.set(objNumber, propAddrs); // racing machines compute the same result
+			}
+			return propAddrs[propNumber];
+		}
+
+		private int getFirstPropertyAddress(int objNumber) {
+			int objAddr = getObjectAddress(objNumber);
+			int propAddr = getWord(objAddr + OFFSET_PROPERTIES);
+			int nameLength = getByte(propAddr);
+			return propAddr + 1 + (nameLength * 2);
+		}
+
+		private int findPropertyAddress(int objNumber, int propNumber) {
+			int propAddr = getFirstPropertyAddress(objNumber);
+			if (propNumber == 0) {
+				return propAddr;
+			}
+
+			while (true) {
+				int propDescByte = getByte(propAddr);
+				if (propDescByte == 0) {
+					return 0;
+				}
+				if ((propDescByte & 0b1_1111) == propNumber) { // the first of duplicate properties wins
+					return propAddr;
+				}
+				int propLen = (propDescByte >> 5) + 1;
+				propAddr += 1 + propLen;
+			}
+		}
+
+		private int[] createPropertyAddresses(int objNumber) {
+			int[] propAddrs = new int[NUM_PROPERTIES + 1];
+
+			int propAddr = getFirstPropertyAddress(objNumber);
+			propAddrs[0] = propAddr;
+
+			while (true) {
+				int propDescByte = getByte(propAddr);
+				if (propDescByte == 0) {
+					break;
+				}
+
+				int propNumber = propDescByte & 0b1_1111;
+				if (propAddrs[propNumber] == 0) { // the first of duplicate properties wins
+					propAddrs[propNumber] = propAddr;
+				}
+
+				int propLen = (propDescByte >> 5) + 1;
+				propAddr += 1 + propLen;
+			}
+			return propAddrs;
+		}
+
+		private PropertyIndex createPropertyIndex() { // call with pristine dynamic memory
+			long[] sourceBits = new long[(this.dynamicMemoryLength + 63) / 64];
+			int numObjects = getNumObjects();
+			for (int objNumber = 1; objNumber <= numObjects; objNumber++) {
+				int pointerAddr = getObjectAddress(objNumber) + OFFSET_PROPERTIES;
+				markSource(sourceBits, pointerAddr, pointerAddr + WORD_SIZE);
+				int propAddr = getWord(pointerAddr);
+				markSource(sourceBits, propAddr, propAddr + 1); // name length
+				propAddr += 1 + (getByte(propAddr) * 2);
+				while (true) {
+					markSource(sourceBits, propAddr, propAddr + 1); // size byte or end marker
+					int propDescByte = getByte(propAddr);
+					if (propDescByte == 0) {
+						break;
+					}
+					int propLen = (propDescByte >> 5) + 1;
+					propAddr += 1 + propLen;
+				}
+			}
+			return new PropertyIndex(numObjects, new SourceBytes(sourceBits));
+		}
+
+		public void setPrevSiblingNumber(int objNumber, int prevObjNumber) {
+			if (this.prevSiblingNumbers != null) {
+				this.prevSiblingNumbers[objNumber] = prevObjNumber;
+			}
+		}
+
 		// decoding/encoding strings
 
 		private final static String ALPHABET = "" //
@@ -547,98 +1895,193 @@ public class ZInterpreter {
 				+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ"//
 				+ "*" + EOL + "0123456789.,!?_#'\"/\\-:()";
 
-		public String decodeZString(int index) {
-			List<Integer> zchars = new ArrayList<Integer>();
+		public int printZString(int addr, StringBuffer out) { // returns the address after the encoded string
+			if (isDynamicMemory(addr) || (this.abbreviations == null)) {
+				return appendZString(addr, out); // may change anytime, or decodes differently than in other machines
+			}
+
+			StringCache stringCache = this.storyFile.stringCache;
+			StringCache.Entry entry = stringCache.get(addr);
+			if (entry != null) {
+				this.stringCacheHits++;
+				out.append(entry.text);
+				return entry.endAddr;
+			}
+
+			this.stringCacheMisses++;
+			int startPos = out.length();
+			int endAddr = appendZString(addr, out);
+			if (stringCache.put(new StringCache.Entry(addr, out.substring(startPos), endAddr))) {
+				this.stringCacheEvictions++;
+			}
+			return endAddr;
+		}
+
+		private int getZStringEndAddr(int addr) {
+			int index = addr;
+			do {
+				index += 2;
+			} while (isBitClear(getWord(index - 2), 15));
+			return index;
+		}
+
+		// decoder states, while walking the z-chars of a string
+		private final static int ZCHAR_STATE_NORMAL = 0;
+		private final static int ZCHAR_STATE_ABBREVIATION = 1; // expects the abbreviation index
+		private final static int ZCHAR_STATE_ZSCII_HI = 2; // expects the upper 5 bits of a ZSCII character
+		private final static int ZCHAR_STATE_ZSCII_LO = 3; // expects the lower 5 bits of a ZSCII character
+
+		private int appendZString(int addr, StringBuffer out) { // returns the address after the encoded string
+			int index = addr;
+			int currAlphabet = 0;
+			int state = ZCHAR_STATE_NORMAL;
+			int pendingValue = 0; // abbreviation bank or upper bits of a ZSCII character
 
 			boolean isDone = false;
 			do {
 				int iZchars = getWord(index);
 				isDone = isBitSet(iZchars, 15);
-				zchars.add((iZchars >> 10) & 0b1_1111);
-				zchars.add((iZchars >> 5) & 0b1_1111);
-				zchars.add(iZchars & 0b1_1111);
 				index += 2;
+
+				for (int shift = 10; shift >= 0; shift -= 5) {
+					int zchar = (iZchars >> shift) & 0b1_1111;
+					switch (state) {
+						case ZCHAR_STATE_ABBREVIATION:
+							int abbrIndex = (32 * (pendingValue - 1)) + zchar;
+							appendAbbreviation(abbrIndex, out);
+							state = ZCHAR_STATE_NORMAL;
+							break;
+						case ZCHAR_STATE_ZSCII_HI:
+							pendingValue = zchar;
+							state = ZCHAR_STATE_ZSCII_LO;
+							break;
+						case ZCHAR_STATE_ZSCII_LO:
+							out.append((char) ((pendingValue << 5) | zchar));
+							state = ZCHAR_STATE_NORMAL;
+							break;
+						default:
+							if (zchar == 0) {
+								out.append(' ');
+							} else if ((zchar >= 1) && (zchar <= 3)) {
+								pendingValue = zchar;
+								state = ZCHAR_STATE_ABBREVIATION;
+							} else if (zchar == 4) {
+								currAlphabet = 1;
+								continue;
+							} else if (zchar == 5) {
+								currAlphabet = 2;
+								continue;
+							} else if ((zchar == 6) && (currAlphabet == 2)) {
+								state = ZCHAR_STATE_ZSCII_HI;
+							} else {
+								out.append(ALPHABET.charAt(((currAlphabet * 26) + zchar) - 6));
+							}
+							currAlphabet = 0;
+							break;
+					}
+				}
 			} while (isDone == false);
 
-			int currAlphabet = 0;
-			StringBuffer result = new StringBuffer();
-			for (int i = 0; i < zchars.size(); i++) {
-				int zchar = zchars.get(i);
-				if (zchar == 0) {
-					result.append(" ");
-				} else if ((zchar >= 1) && (zchar <= 3)) {
-					int zchar2 = zchars.get(i + 1);
-					i++;
-					int abbrIndex = (32 * (zchar - 1)) + zchar2;
-					int strAddr = getAbbreviationAddress(abbrIndex);
-					result.append(decodeZString(strAddr));
-				} else if (zchar == 4) {
-					currAlphabet = 1;
-					continue;
-				} else if (zchar == 5) {
-					currAlphabet = 2;
-					continue;
-				} else if ((zchar == 6) && (currAlphabet == 2)) {
-					int zchar2 = zchars.get(i + 1);
-					int zchar3 = zchars.get(i + 2);
-					i += 2;
-					result.append((char) ((zchar2 << 5) | zchar3));
+			return index;
+		}
+
+		private Abbreviations expandAbbreviations() { // call with pristine dynamic memory
+			StringBuffer chars = new StringBuffer();
+			int[] offsets = new int[NUM_ABBREVIATIONS + 1];
+			long[] sourceBits = new long[(this.dynamicMemoryLength + 63) / 64];
+			int tableAddr = this.header.abbreviationTableAddr;
+			markSource(sourceBits, tableAddr, tableAddr + (NUM_ABBREVIATIONS * WORD_SIZE));
+			for (int i = 0; i < NUM_ABBREVIATIONS; i++) {
+				int abbrAddr = getAbbreviationAddress(i);
+				offsets[i] = chars.length();
+				int endAddr = appendZString(abbrAddr, chars);
+				markSource(sourceBits, abbrAddr, endAddr);
+			}
+			offsets[NUM_ABBREVIATIONS] = chars.length();
+
+			char[] result = new char[chars.length()];
+			chars.getChars(0, chars.length(), result, 0);
+			return new Abbreviations(result, offsets, new SourceBytes(sourceBits));
+		}
+
+		private void markSource(long[] sourceBits, int fromAddr, int toAddr) { // the dynamic memory part only
+			for (int addr = fromAddr; addr < Math.min(toAddr, this.dynamicMemoryLength); addr++) {
+				sourceBits[addr >>> 6] |= 1L << addr;
+			}
+		}
+
+		private void appendAbbreviation(int abbrIndex, StringBuffer out) {
+			Abbreviations abbreviations = this.abbreviations;
+			if (abbreviations == null) {
+				this.abbreviationsDecoded++;
+				appendZString(getAbbreviationAddress(abbrIndex), out);
+				return;
+			}
+			this.abbreviationsExpanded++;
+			int start = abbreviations.offsets[abbrIndex];
+			out.append(abbreviations.chars, start, abbreviations.offsets[abbrIndex + 1] - start);
+		}
+
+		private final static int[] ZCHARS_FOR_CHAR = createZCharsForChar(); // indexed by character, 0 = not encodable
+
+		private static int[] createZCharsForChar() {
+			int[] result = new int[128];
+			for (int pos = ALPHABET.length() - 1; pos >= 0; pos--) { // the first occurrence wins, as with indexOf()
+				char chr = ALPHABET.charAt(pos);
+				if (pos <= 25) {
+					result[chr] = 6 + pos;
+				} else if (pos >= 52) {
+					result[chr] = (0b0101 << 5) | ((6 + pos) - 52); // shift to A2, then the z-char
 				} else {
-					result.append(ALPHABET.charAt(((currAlphabet * 26) + zchar) - 6));
+					result[chr] = 0;
 				}
-				currAlphabet = 0;
 			}
-
-			return result.toString();
+			return result;
 		}
 
-		private byte[] encodeZString(String text) {
-			List<Integer> zchars = new ArrayList<Integer>();
+		public long encodeWord(char[] chars, int start, int len) { // returns the two encoded words of a dictionary entry
+			long zchars = 0;
+			int numZchars = 0;
 
-			text = text.toLowerCase(); // duplicate toLowerCase(), just to make sure
-			int textLen = Math.min(text.length(), 6);
-			for (int i = 0; i < textLen; i++) {
-				char chr = text.charAt(i);
+			int textLen = Math.min(len, 6);
+			for (int i = 0; (i < textLen) && (numZchars < 6); i++) {
+				char chr = chars[start + i];
 				if (chr == ' ') {
-					zchars.add(0);
-				} else {
-					int pos = ALPHABET.indexOf(chr);
-					if ((pos >= 0) & (pos <= 25)) {
-						zchars.add(6 + pos);
-					} else if ((pos >= 52) & (pos <= 77)) {
-						zchars.add(0b0101);
-						zchars.add((6 + pos) - 52);
+					zchars = zchars << 5;
+					numZchars++;
+				} else if (chr < 128) {
+					int encoded = ZCHARS_FOR_CHAR[chr];
+					if (encoded > 0b1_1111) {
+						zchars = (zchars << 5) | (encoded >> 5);
+						numZchars++;
+						if (numZchars < 6) {
+							zchars = (zchars << 5) | (encoded & 0b1_1111);
+							numZchars++;
+						}
+					} else if (encoded > 0) {
+						zchars = (zchars << 5) | encoded;
+						numZchars++;
 					} else {
 						// ignore
 					}
 				}
 			}
 
-			while (zchars.size() < 6) {
-				zchars.add(0b0101);
-			}
-
-			byte[] result = new byte[4];
-
-			int index = 0;
-			int zcharIndex = 0;
-			while (index < 4) {
-				int zchar1 = zchars.get(zcharIndex++);
-				int zchar2 = zchars.get(zcharIndex++);
-				int zchar3 = zchars.get(zcharIndex++);
-
-				int word = (zchar1 << 10) | (zchar2 << 5) | zchar3;
-				result[index] = (byte) ((word >> 8) & 0xFF);
-				result[index + 1] = (byte) (word & 0xFF);
-				index += 2;
+			while (numZchars < 6) {
+				zchars = (zchars << 5) | 0b0101;
+				numZchars++;
 			}
 
-			result[2] |= 0b1000_0000;
-			return result;
+			long word1 = (zchars >> 15) & 0x7FFF;
+			long word2 = (zchars & 0x7FFF) | 0x8000;
+			return (word1 << 16) | word2;
 		}
 
-		public int getWordAddr(String word) { // TODO: Use binary search
-			byte[] wordToSearch = encodeZString(word);
+		public int getWordAddr(long encodedWord) {
+			DictionaryIndex dictionaryIndex = this.storyFile.dictionaryIndex;
+			if (dictionaryIndex != null) {
+				return dictionaryIndex.get((int) encodedWord);
+			}
 
 			int dictionaryAddr = this.header.dictionaryAddr;
 			int numSeparators = getByte(dictionaryAddr);
@@ -648,15 +2091,8 @@ public class ZInterpreter {
 			int wordAddr = dictionaryAddr + 1 + numSeparators + 1 + 2;
 
 			for (int i = 0; i < numEntries; i++) {
-				boolean isFound = true;
-				for (int j = 0; j < 4; j++) {
-					byte charDictionaryWord = (byte) getByte(wordAddr + j);
-					if (charDictionaryWord != wordToSearch[j]) {
-						isFound = false;
-						break;
-					}
-				}
-				if (isFound) {
+				long dictionaryWord = ((long) getWord(wordAddr) << 16) | getWord(wordAddr + 2);
+				if (dictionaryWord == encodedWord) {
 					return wordAddr;
 				}
 				wordAddr += entryLen;
@@ -680,9 +2116,37 @@ public class ZInterpreter {
 			return this.WORD_SEPARATORS;
 		}
 
-		private int getAbbreviationAddress(int abbrIndex) {
-			if ((abbrIndex < 0) || (abbrIndex > 95)) {
-				halt(String.format("getAbbreviationAddress() - Index %d out of bounds [%d..%d]", abbrIndex, 0, 95));
+		private long wordSeparatorBitsLo = -1; // bitmap of characters 0..63, -1 = not built yet
+		private long wordSeparatorBitsHi; // bitmap of characters 64..127
+
+		public boolean isWordSeparator(char chr) {
+			if (this.wordSeparatorBitsLo == -1) {
+				long bitsLo = 0;
+				long bitsHi = 0;
+				String wordSeparators = getWordSeparators();
+				for (int i = 0; i < wordSeparators.length(); i++) {
+					char separator = wordSeparators.charAt(i);
+					if (separator < 64) {
+						bitsLo |= 1L << separator;
+					} else if (separator < 128) {
+						bitsHi |= 1L << (separator - 64);
+					}
+				}
+				this.wordSeparatorBitsLo = bitsLo;
+				this.wordSeparatorBitsHi = bitsHi;
+			}
+
+			if (chr < 64) {
+				return (this.wordSeparatorBitsLo & (1L << chr)) != 0;
+			} else if (chr < 128) {
+				return (this.wordSeparatorBitsHi & (1L << (chr - 64))) != 0;
+			}
+			return false;
+		}
+
+		private int getAbbreviationAddress(int abbrIndex) {
+			if ((abbrIndex < 0) || (abbrIndex >= NUM_ABBREVIATIONS)) {
+				halt(String.format("getAbbreviationAddress() - Index %d out of bounds [%d..%d]", abbrIndex, 0, NUM_ABBREVIATIONS - 1));
 			}
 			int abbrAddr = this.header.abbreviationTableAddr + (abbrIndex * WORD_SIZE);
 			return getUnpackedAddress(getWord(abbrAddr));
@@ -698,6 +2162,16 @@ public class ZInterpreter {
 		private RandomNumberGeneratorState rngState = RandomNumberGeneratorState.RANDOM;
 		private int rngSeed;
 		private int rngCounter;
+		private long rngRandomState = System.nanoTime() | 1; // xorshift state, never 0
+
+		private int nextRandom(int range) {
+			long x = this.rngRandomState;
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			this.rngRandomState = x;
+			return (int) ((x >>> 1) % range);
+		}
 
 		public int random(int value) {
 			int result = -1;
@@ -712,7 +2186,7 @@ public class ZInterpreter {
 			}
 
 			if (this.rngState == RandomNumberGeneratorState.RANDOM) {
-				result = (int) (Math.random() * value) + 1;
+				result = nextRandom(value) + 1;
 			} else {
 				this.rngCounter++;
 				result = (this.rngCounter % this.rngSeed) + 1;
@@ -731,7 +2205,7 @@ public class ZInterpreter {
 		}
 
 		public boolean isDynamicOrStaticMemory(int addr) {
-			int bounds = Math.min(0xFFFF, this.story.length);
+			int bounds = Math.min(0xFFFF, this.storyLength);
 			boolean isDynamicOrStaticMemory = addr <= bounds;
 			return isDynamicOrStaticMemory;
 		}
@@ -747,6 +2221,531 @@ public class ZInterpreter {
 			return packedAddr * 2;
 		}
 
+		// hibernation
+
+		public void writeState(DataOutput out) throws IOException {
+			out.writeInt(this.pc);
+			out.writeInt(this.stack.topIndex);
+			out.writeInt(this.stack.stackFrameIndex);
+			out.writeInt(this.rngState.ordinal());
+			out.writeInt(this.rngSeed);
+			out.writeInt(this.rngCounter);
+			out.writeLong(this.rngRandomState);
+			int[] dirtyRanges = getDirtyRanges(); // the rest is pristine memory
+			out.writeInt(dirtyRanges.length / 2);
+			for (int j = 0; j < dirtyRanges.length; j += 2) {
+				out.writeInt(dirtyRanges[j]);
+				out.writeInt(dirtyRanges[j + 1]);
+				for (int i = dirtyRanges[j]; i < dirtyRanges[j + 1]; i++) {
+					out.writeByte(getDynamicByte(i));
+				}
+			}
+			for (int i = 0; i <= this.stack.topIndex; i++) {
+				out.writeInt(this.stack.stack[i]);
+			}
+			writeUndoStates(out); // so undo still works after waking up
+		}
+
+		public void releaseMemory() { // until readState(), the machine must not run
+			this.memoryPages = null;
+			this.stack.stack = null;
+			clearUndo(); // written by writeState()
+			for (int i = 0; i < this.instructionCache.length; i++) {
+				this.instructionCache[i] = null;
+			}
+			this.isDynamicMemoryInstructionCached = false;
+			for (int i = 0; i < this.routineCache.length; i++) {
+				this.routineCache[i] = null;
+			}
+		}
+
+		public void readState(DataInput in) throws IOException {
+			this.pc = in.readInt();
+			int topIndex = in.readInt();
+			int stackFrameIndex = in.readInt();
+			this.rngState = RandomNumberGeneratorState.values()[in.readInt()];
+			this.rngSeed = in.readInt();
+			this.rngCounter = in.readInt();
+			this.rngRandomState = in.readLong();
+			byte[] dynamicMemory = this.storyFile.pristineDynamicMemory.clone();
+			int numDirtyRanges = in.readInt();
+			for (int j = 0; j < numDirtyRanges; j++) {
+				int start = in.readInt();
+				int end = in.readInt();
+				in.readFully(dynamicMemory, start, end - start);
+			}
+			setDynamicMemory(dynamicMemory); // the dirty pages stay marked from before writeState()
+
+			this.stack.stack = new int[Stack.INITIAL_STACK_SIZE];
+			this.stack.topIndex = -1;
+			this.stack.grow(topIndex + 1);
+			for (int i = 0; i <= topIndex; i++) {
+				this.stack.stack[i] = in.readInt();
+			}
+			this.stack.topIndex = topIndex;
+			this.stack.stackFrameIndex = stackFrameIndex;
+			updateFrameCache();
+			readUndoStates(in);
+		}
+
+		// forking
+
+		public ZMachine fork() { // call paused at an input instruction, both machines share memory pages until either writes one
+			return new ZMachine(this);
+		}
+
+		private ZMachine(ZMachine parent) {
+			// the story, header, superinstructions and abbreviations are shared, the caches start empty
+			// because compiled routines are bound to the interpreter that runs them
+
+			this.storyFile = parent.storyFile;
+			this.story = parent.story;
+			this.storyLength = parent.storyLength;
+			this.header = parent.header;
+			this.dynamicMemoryLength = parent.dynamicMemoryLength;
+			this.memoryPages = parent.memoryPages.clone();
+			this.sharedPages = new long[parent.sharedPages.length];
+			setAllPageBits(this.sharedPages);
+			setAllPageBits(parent.sharedPages);
+			this.dirtyPages = parent.dirtyPages.clone(); // the parent's writes differ from pristine memory here too
+			this.uncomparedPages = new long[parent.uncomparedPages.length];
+
+			this.maxStackSize = parent.maxStackSize;
+			this.memoryBudget = parent.memoryBudget;
+			this.stack = new Stack();
+			this.stack.grow(parent.stack.topIndex + 1); // the live prefix only
+			System.arraycopy(parent.stack.stack, 0, this.stack.stack, 0, parent.stack.topIndex + 1);
+			this.stack.topIndex = parent.stack.topIndex;
+			this.stack.stackFrameIndex = parent.stack.stackFrameIndex;
+			updateFrameCache();
+
+			this.pc = parent.pc;
+			this.isRunning = parent.isRunning;
+			this.globalVariablesBaseAddr = parent.globalVariablesBaseAddr;
+			this.isStrict = parent.isStrict;
+			this.instructionCache = new Instruction[parent.instructionCache.length][];
+			this.isDynamicMemoryInstructionCached = false;
+			this.instruction = parent.instruction;
+			this.routineCache = new Routine[parent.routineCache.length][];
+			this.superinstructions = parent.superinstructions;
+			this.superinstructionCounts = new long[parent.superinstructionCounts.length];
+			this.threadThreshold = parent.threadThreshold;
+			this.compileThreshold = parent.compileThreshold;
+			this.numRoutinesCompiled = 0;
+			this.operands = parent.operands.clone();
+			this.numOperands = parent.numOperands;
+			this.abbreviations = parent.abbreviations;
+			this.propertyIndex = parent.propertyIndex;
+			this.prevSiblingNumbers = (parent.prevSiblingNumbers == null) ? null : parent.prevSiblingNumbers.clone();
+			this.WORD_SEPARATORS = parent.WORD_SEPARATORS;
+			this.wordSeparatorBitsLo = parent.wordSeparatorBitsLo;
+			this.wordSeparatorBitsHi = parent.wordSeparatorBitsHi;
+
+			// same random numbers in both machines from here on
+			this.rngState = parent.rngState;
+			this.rngSeed = parent.rngSeed;
+			this.rngCounter = parent.rngCounter;
+			this.rngRandomState = parent.rngRandomState;
+
+			setUndoLevels(parent.maxUndoLevels); // the undo states stay with the parent
+		}
+
+		// dirty pages
+
+		//	Dynamic memory in pages of MEMORY_PAGE_SIZE bytes, one bit each
+		//
+		//	page    0   1   2   3   4   5       dirtyPages[0] = ...0110010
+		//	      +---+---+---+---+---+---+
+		//	      |   | * |   |   | * | * | --> getDirtyRanges() = { 0x40, 0x80, 0x100, 0x180 }
+		//	      +---+---+---+---+---+---+
+
+		public void markAllDirty() { // call after dynamic memory changed other than by setByte()
+			setAllPageBits(this.dirtyPages);
+			setAllPageBits(this.uncomparedPages);
+		}
+
+		public int[] getDirtyRanges() { // start and end (exclusive) address pairs of the written pages, adjacent pages merged
+			return getPageRanges(this.dirtyPages);
+		}
+
+		private int[] getPageRanges(long[] pageBits) {
+			int numRanges = 0;
+			long prevBit = 0;
+			for (long bits : pageBits) {
+				numRanges += Long.bitCount(bits & ~((bits << 1) | prevBit)); // first pages of runs
+				prevBit = bits >>> 63;
+			}
+
+			int[] result = new int[numRanges * 2];
+			int j = 0;
+			int rangeStartPage = -1;
+			for (int i = 0; i < pageBits.length; i++) {
+				long bits = pageBits[i];
+				long edges = bits ^ ((bits << 1) | ((i > 0) ? (pageBits[i - 1] >>> 63) : 0));
+				while (edges != 0) {
+					int page = (i * 64) + Long.numberOfTrailingZeros(edges);
+					edges &= edges - 1;
+					if (rangeStartPage == -1) {
+						rangeStartPage = page;
+					} else {
+						result[j++] = rangeStartPage << MEMORY_PAGE_BITS;
+						result[j++] = Math.min(page << MEMORY_PAGE_BITS, this.dynamicMemoryLength);
+						rangeStartPage = -1;
+					}
+				}
+			}
+			if (rangeStartPage != -1) {
+				result[j++] = rangeStartPage << MEMORY_PAGE_BITS;
+				result[j++] = this.dynamicMemoryLength;
+			}
+			return result;
+		}
+
+		private static void clearPageBits(long[] pageBits) {
+			for (int i = 0; i < pageBits.length; i++) {
+				pageBits[i] = 0;
+			}
+		}
+
+		// undo
+
+		//	Undo states, newest first
+		//
+		//	+-------+ <-- state of the current turn, stack held in full
+		//	| pc    |     memory bytes written since are logged with their old values
+		//	| stack |
+		//	+-------+ <-- previous turn, stack held as the entries that differ from the newer state,
+		//	|  ...  |     memory held as the bytes that differ from the newer state
+		//	+-------+ <-- oldest turn, dropped when more than maxUndoLevels turns are held
+
+		private static class UndoState {
+			private int pc;
+			private Instruction instruction;
+			private int[] operands;
+			private int stackFrameIndex;
+			private int stackSize;
+			private int stackPrefixLen; // stack entries equal to those of the newer state
+			private int[] stackTail; // stack entries from stackPrefixLen on
+			private char[] memoryAddrs; // dynamic memory bytes that differ from the newer state, addresses fit in 16 bits
+			private byte[] memoryBytes;
+		}
+
+		public final static int DEFAULT_UNDO_LEVELS = 50;
+
+		private int maxUndoLevels = 0;
+		private Deque<UndoState> undoStates = new ArrayDeque<UndoState>();
+		private long[] undoLoggedBits; // dynamic memory bytes written since the newest undo state, null = undo disabled
+		private char[] undoLogAddrs;
+		private byte[] undoLogBytes;
+		private int undoLogLen;
+
+		public void setUndoLevels(int maxUndoLevels) {
+			this.maxUndoLevels = maxUndoLevels;
+			clearUndo();
+			if (maxUndoLevels == 0) {
+				this.undoLoggedBits = null;
+				this.undoLogAddrs = null;
+				this.undoLogBytes = null;
+			} else {
+				this.undoLoggedBits = new long[(this.dynamicMemoryLength + 63) / 64];
+				this.undoLogAddrs = new char[64];
+				this.undoLogBytes = new byte[64];
+			}
+		}
+
+		public boolean isUndoEnabled() {
+			return this.maxUndoLevels > 0;
+		}
+
+		public void clearUndo() { // call after dynamic memory changed other than by setByte()
+			this.undoStates.clear();
+			clearUndoLog();
+		}
+
+		private void logUndo(int index) {
+			int bitIndex = index >>> 6;
+			long bit = 1L << index;
+			if ((this.undoLoggedBits[bitIndex] & bit) != 0) {
+				return;
+			}
+			this.undoLoggedBits[bitIndex] |= bit;
+			appendUndoLog(index, (byte) getDynamicByte(index));
+		}
+
+		private void appendUndoLog(int index, byte value) {
+			if (this.undoLogLen == this.undoLogAddrs.length) {
+				this.undoLogAddrs = Arrays.copyOf(this.undoLogAddrs, this.undoLogLen * 2);
+				this.undoLogBytes = Arrays.copyOf(this.undoLogBytes, this.undoLogLen * 2);
+			}
+			this.undoLogAddrs[this.undoLogLen] = (char) index;
+			this.undoLogBytes[this.undoLogLen] = value;
+			this.undoLogLen++;
+		}
+
+		private void clearUndoLog() {
+			if (this.undoLoggedBits == null) {
+				return;
+			}
+			for (int i = 0; i < this.undoLogLen; i++) {
+				this.undoLoggedBits[this.undoLogAddrs[i] >>> 6] = 0;
+			}
+			this.undoLogLen = 0;
+		}
+
+		public void saveUndoState() { // call at the start of an input instruction
+			if (this.maxUndoLevels == 0) {
+				return;
+			}
+
+			UndoState newest = this.undoStates.peekFirst();
+			if (newest != null) {
+				// keep only what differs from the state saved now
+
+				int numChanged = 0;
+				for (int i = 0; i < this.undoLogLen; i++) {
+					if ((byte) getDynamicByte(this.undoLogAddrs[i]) != this.undoLogBytes[i]) {
+						numChanged++;
+					}
+				}
+				newest.memoryAddrs = new char[numChanged];
+				newest.memoryBytes = new byte[numChanged];
+				int j = 0;
+				for (int i = 0; i < this.undoLogLen; i++) {
+					if ((byte) getDynamicByte(this.undoLogAddrs[i]) != this.undoLogBytes[i]) {
+						newest.memoryAddrs[j] = this.undoLogAddrs[i];
+						newest.memoryBytes[j] = this.undoLogBytes[i];
+						j++;
+					}
+				}
+
+				int maxPrefixLen = Math.min(newest.stackSize, this.stack.topIndex + 1);
+				int prefixLen = 0;
+				while ((prefixLen < maxPrefixLen) && (newest.stackTail[prefixLen] == this.stack.stack[prefixLen])) {
+					prefixLen++;
+				}
+				newest.stackPrefixLen = prefixLen;
+				newest.stackTail = Arrays.copyOfRange(newest.stackTail, prefixLen, newest.stackSize);
+			}
+			clearUndoLog();
+
+			UndoState state = new UndoState();
+			state.pc = this.pc;
+			state.instruction = this.instruction;
+			state.operands = Arrays.copyOf(this.operands, this.numOperands);
+			state.stackFrameIndex = this.stack.stackFrameIndex;
+			state.stackSize = this.stack.topIndex + 1;
+			state.stackPrefixLen = 0;
+			state.stackTail = Arrays.copyOf(this.stack.stack, state.stackSize);
+			this.undoStates.addFirst(state);
+
+			if (this.undoStates.size() > (this.maxUndoLevels + 1)) {
+				this.undoStates.removeLast();
+			}
+		}
+
+		public boolean restoreUndoState() { // returns to the state saved at the previous input instruction
+			if (this.undoStates.size() < 2) {
+				return false;
+			}
+
+			// back to the newest state, then one state further
+
+			UndoState newest = this.undoStates.removeFirst();
+			for (int i = 0; i < this.undoLogLen; i++) {
+				restoreUndoByte(this.undoLogAddrs[i], this.undoLogBytes[i]);
+			}
+			clearUndoLog();
+
+			UndoState state = this.undoStates.peekFirst();
+			for (int i = 0; i < state.memoryAddrs.length; i++) {
+				restoreUndoByte(state.memoryAddrs[i], state.memoryBytes[i]);
+			}
+			state.memoryAddrs = null;
+			state.memoryBytes = null;
+
+			int[] stackEntries = new int[state.stackSize];
+			System.arraycopy(newest.stackTail, 0, stackEntries, 0, state.stackPrefixLen);
+			System.arraycopy(state.stackTail, 0, stackEntries, state.stackPrefixLen, state.stackTail.length);
+			state.stackPrefixLen = 0;
+			state.stackTail = stackEntries;
+
+			this.stack.grow(state.stackSize);
+			System.arraycopy(stackEntries, 0, this.stack.stack, 0, state.stackSize);
+			this.stack.topIndex = state.stackSize - 1;
+			this.stack.stackFrameIndex = state.stackFrameIndex;
+			updateFrameCache();
+
+			this.pc = state.pc;
+			this.instruction = state.instruction;
+			System.arraycopy(state.operands, 0, this.operands, 0, state.operands.length);
+			this.numOperands = state.operands.length;
+
+			invalidateDynamicMemoryInstructions();
+			rebuildObjectIndex();
+			return true;
+		}
+
+		private void restoreUndoByte(int index, byte value) {
+			putDynamicByte(index, value);
+			dropSharedDataFrom(index);
+		}
+
+		private void writeUndoStates(DataOutput out) throws IOException {
+			out.writeInt(this.undoStates.size());
+			for (UndoState state : this.undoStates) {
+				out.writeInt(state.pc);
+				out.writeInt((state.instruction != null) ? state.instruction.addr : -1);
+				writeInts(out, state.operands);
+				out.writeInt(state.stackFrameIndex);
+				out.writeInt(state.stackSize);
+				out.writeInt(state.stackPrefixLen);
+				writeInts(out, state.stackTail);
+				out.writeInt((state.memoryAddrs != null) ? state.memoryAddrs.length : -1); // -1 = newest state
+				for (int i = 0; (state.memoryAddrs != null) && (i < state.memoryAddrs.length); i++) {
+					out.writeChar(state.memoryAddrs[i]);
+					out.writeByte(state.memoryBytes[i]);
+				}
+			}
+			out.writeInt(this.undoLogLen);
+			for (int i = 0; i < this.undoLogLen; i++) {
+				out.writeChar(this.undoLogAddrs[i]);
+				out.writeByte(this.undoLogBytes[i]);
+			}
+		}
+
+		private void readUndoStates(DataInput in) throws IOException { // call with dynamic memory read
+			clearUndo();
+			int numStates = in.readInt();
+			for (int i = 0; i < numStates; i++) {
+				UndoState state = new UndoState();
+				state.pc = in.readInt();
+				int instructionAddr = in.readInt();
+				state.instruction = (instructionAddr != -1) ? getInstruction(instructionAddr) : null;
+				state.operands = readInts(in);
+				state.stackFrameIndex = in.readInt();
+				state.stackSize = in.readInt();
+				state.stackPrefixLen = in.readInt();
+				state.stackTail = readInts(in);
+				int numMemoryBytes = in.readInt();
+				if (numMemoryBytes != -1) {
+					state.memoryAddrs = new char[numMemoryBytes];
+					state.memoryBytes = new byte[numMemoryBytes];
+					for (int j = 0; j < numMemoryBytes; j++) {
+						state.memoryAddrs[j] = in.readChar();
+						state.memoryBytes[j] = in.readByte();
+					}
+				}
+				this.undoStates.addLast(state);
+			}
+
+			int undoLogLen = in.readInt();
+			for (int i = 0; i < undoLogLen; i++) {
+				int index = in.readChar();
+				byte value = in.readByte();
+				if (this.undoLoggedBits != null) {
+					this.undoLoggedBits[index >>> 6] |= 1L << index;
+					appendUndoLog(index, value);
+				}
+			}
+		}
+
+		private static void writeInts(DataOutput out, int[] values) throws IOException {
+			out.writeInt(values.length);
+			for (int value : values) {
+				out.writeInt(value);
+			}
+		}
+
+		private static int[] readInts(DataInput in) throws IOException {
+			int[] values = new int[in.readInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = in.readInt();
+			}
+			return values;
+		}
+
+		public int getUndoMemorySize() { // approximate bytes held by the undo states
+			int result = 0;
+			for (UndoState state : this.undoStates) {
+				result += 4 * (state.operands.length + state.stackTail.length);
+				if (state.memoryAddrs != null) {
+					result += 3 * state.memoryAddrs.length;
+				}
+			}
+			return result + (3 * this.undoLogLen);
+		}
+
+		// comparing machines
+
+		public String getStateDifference(ZMachine other) {
+			if (this.pc != other.pc) {
+				return String.format("pc 0x%x differs from 0x%x", this.pc, other.pc);
+			}
+			if ((this.stack.topIndex != other.stack.topIndex) || (this.stack.stackFrameIndex != other.stack.stackFrameIndex)) {
+				return String.format("Stack indexes %d/%d differ from %d/%d", this.stack.topIndex, this.stack.stackFrameIndex, other.stack.topIndex, other.stack.stackFrameIndex);
+			}
+			for (int i = 0; i <= this.stack.topIndex; i++) {
+				if (this.stack.stack[i] != other.stack.stack[i]) {
+					return String.format("Stack value at index %d differs", i);
+				}
+			}
+
+			// only pages written since the previous comparison can differ, both machines start out equal
+			String difference = getMemoryDifference(other, getPageRanges(this.uncomparedPages));
+			if (difference == null) {
+				difference = getMemoryDifference(other, other.getPageRanges(other.uncomparedPages));
+			}
+			clearPageBits(this.uncomparedPages);
+			clearPageBits(other.uncomparedPages);
+			return difference;
+		}
+
+		private String getMemoryDifference(ZMachine other, int[] ranges) {
+			for (int j = 0; j < ranges.length; j += 2) {
+				for (int i = ranges[j]; i < ranges[j + 1]; i++) {
+					if (getDynamicByte(i) != other.getDynamicByte(i)) {
+						return String.format("Dynamic memory at 0x%x differs", i);
+					}
+				}
+			}
+			return null;
+		}
+
+		// statistics
+
+		public String getStatistics() {
+			long[] counts = this.superinstructionCounts;
+			List<Superinstruction> superinstrs = new ArrayList<Superinstruction>();
+			superinstrs.addAll(this.superinstructions.pairs.values());
+			superinstrs.addAll(this.superinstructions.triples.values());
+			superinstrs.sort((s1, s2) -> Long.compare(counts[s2.id], counts[s1.id]));
+
+			StringBuffer result = new StringBuffer();
+			result.append(String.format("%-40s %8s %12s", "Superinstruction", "Static", "Executions") + EOL);
+			for (Superinstruction superinstr : superinstrs) {
+				result.append(String.format("%-40s %8d %12d", superinstr.name, superinstr.staticCount, counts[superinstr.id]) + EOL);
+			}
+
+			result.append(EOL);
+			result.append(String.format("%-40s %8d", "String cache hits", this.stringCacheHits) + EOL);
+			result.append(String.format("%-40s %8d", "String cache misses", this.stringCacheMisses) + EOL);
+			result.append(String.format("%-40s %8d", "String cache evictions", this.stringCacheEvictions) + EOL);
+			result.append(String.format("%-40s %8d", "String cache entries (shared)", this.storyFile.stringCache.getNumEntries()) + EOL);
+			result.append(String.format("%-40s %8d", "Abbreviations expanded", this.abbreviationsExpanded) + EOL);
+			result.append(String.format("%-40s %8d", "Abbreviations decoded on demand", this.abbreviationsDecoded) + EOL);
+
+			result.append(EOL);
+			result.append(String.format("%-40s %8d", "Stack size", this.stack.stack.length) + EOL);
+			result.append(String.format("%-40s %8d", "Stack size limit", getMaxStackSize()) + EOL);
+			result.append(String.format("%-40s %8d", "Memory pages copied on write", this.numPagesCopied) + EOL);
+			result.append(String.format("%-40s %8d", "Routines compiled to JVM classes", this.numRoutinesCompiled) + EOL);
+
+			result.append(EOL);
+			result.append(String.format("%-40s %8d", "Undo states", this.undoStates.size()) + EOL);
+			result.append(String.format("%-40s %8d", "Undo memory (bytes)", getUndoMemorySize()) + EOL);
+			return result.toString();
+		}
+
 		private void halt(String errorMessage) {
 			throw new RuntimeException("Z-Machine halted: " + errorMessage);
 		}
@@ -754,19 +2753,85 @@ public class ZInterpreter {
 
 	//////////////////////////////////////////////////////////////////////////////
 
+	public interface Terminal {
+		String readLine(); // returns null at the end of the input
+
+		void print(String text);
+
+		void flush();
+	}
+
+	private static class StreamTerminal implements Terminal {
+
+		// Line-oriented terminal on a pair of streams, such as the console or a socket
+
+		private final BufferedReader in;
+		private final PrintStream out;
+
+		public StreamTerminal(InputStream in, PrintStream out, Charset charset) {
+			this.in = new BufferedReader(new InputStreamReader(in, charset));
+			this.out = out;
+		}
+
+		@Override
+		public String readLine() {
+			try {
+				return this.in.readLine();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void print(String text) {
+			this.out.print(text);
+		}
+
+		@Override
+		public void flush() {
+			this.out.flush();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
 	private ZMachine zm;
-	private Path storyFilePath;
 	private boolean isShowScoreUpdates;
-	private Scanner scanner;
+	private boolean isShowStatistics;
+	private Terminal terminal;
+	private File saveDirectory; // if not null, saves are confined to plain file names in this directory
 	private StringBuffer buffer;
 	private int oldScore;
-
-	public ZInterpreter(Path storyFilePath, boolean isShowScoreUpdates) {
-		this.storyFilePath = storyFilePath;
+	private long instructionCount;
+	private CompiledRoutineContext compiledRoutineContext;
+	private int compiledCallDepth; // number of compiled routines running nested in the JVM stack
+	private boolean isPausingAtInput; // driven by start(), resume() and fork() instead of reading the terminal
+	private boolean isWaitingForInput; // paused at an input instruction
+	private String resumedInput; // the input line passed to resume()
+	private ZInterpreter shadow; // runs alongside in differential mode
+	private Deque<String> shadowInputs; // input lines replayed to a shadow, null if not a shadow
+	private char[] inputChars; // reused by Z_sread(), grows with the longest input line
+	private int[] wordStartPos; // position of each parsed word in inputChars
+	private int[] wordLen;
+
+	public ZInterpreter(Terminal terminal, boolean isShowScoreUpdates, boolean isShowStatistics) {
 		this.isShowScoreUpdates = isShowScoreUpdates;
-		this.scanner = new Scanner(System.in);
+		this.isShowStatistics = isShowStatistics;
+		this.terminal = terminal;
+		this.saveDirectory = null;
 		this.buffer = new StringBuffer();
 		this.oldScore = 0;
+		this.instructionCount = 0;
+		this.compiledRoutineContext = new CompiledRoutineContext(this);
+		this.compiledCallDepth = 0;
+		this.isPausingAtInput = false;
+		this.isWaitingForInput = false;
+		this.resumedInput = null;
+		this.shadow = null;
+		this.shadowInputs = null;
+		this.inputChars = new char[MAX_INPUT_LEN];
+		this.wordStartPos = new int[MAX_INPUT_LEN];
+		this.wordLen = new int[MAX_INPUT_LEN];
 	}
 
 	private void restoreScore() {
@@ -801,7 +2866,19 @@ public class ZInterpreter {
 	private String getInput() {
 		checkForScoreUpdate();
 		flush();
-		return this.scanner.nextLine();
+		if (this.shadowInputs != null) {
+			return this.shadowInputs.poll();
+		}
+
+		String input = this.isPausingAtInput ? this.resumedInput : this.terminal.readLine();
+		if (input == null) { // the player has gone
+			this.zm.isRunning = false;
+			input = "";
+		}
+		if (this.shadow != null) {
+			this.shadow.shadowInputs.add(input);
+		}
+		return input;
 	}
 
 	private void print(String text) {
@@ -817,7 +2894,7 @@ public class ZInterpreter {
 			int posEol = str.indexOf(ZMachine.EOL, pos);
 			if (posEol >= 0) {
 				wrap(str, pos, posEol, MAX_LINE_WIDTH);
-				System.out.print(CR);
+				this.terminal.print(CR);
 				pos = posEol + 1;
 			} else {
 				wrap(str, pos, str.length(), MAX_LINE_WIDTH);
@@ -826,9 +2903,10 @@ public class ZInterpreter {
 		}
 
 		this.buffer.setLength(0);
+		this.terminal.flush();
 	}
 
-	private static void wrap(String str, int startPos, int endPos, int maxChars) {
+	private void wrap(String str, int startPos, int endPos, int maxChars) {
 		int posLineStart = startPos;
 		int i = startPos;
 		while (i < endPos) {
@@ -849,20 +2927,20 @@ public class ZInterpreter {
 			}
 
 			if ((posNextSpace - posLineStart) <= maxChars) {
-				System.out.print(str.substring(i, posNextSpace));
+				this.terminal.print(str.substring(i, posNextSpace));
 				i = posNextSpace;
 			} else {
 				if (posNextWord == posLineStart) {
-					System.out.print(str.substring(i, i + maxChars));
+					this.terminal.print(str.substring(i, i + maxChars));
 					i = i + maxChars;
 					if (i < endPos) {
-						System.out.print(CR);
+						this.terminal.print(CR);
 						posLineStart = i;
 					}
 				} else {
 					i = posNextWord;
 					posLineStart = posNextWord;
-					System.out.print(CR);
+					this.terminal.print(CR);
 				}
 			}
 		}
@@ -879,8 +2957,7 @@ public class ZInterpreter {
 	}
 
 	private void Z_print() {
-		String str = this.zm.consumeString();
-		print(str);
+		this.zm.consumeString(this.buffer);
 	}
 
 	private void Z_print_ret() {
@@ -899,53 +2976,173 @@ public class ZInterpreter {
 		print("File to save? >");
 		String strSaveFilepath = getInput();
 
-		String saveContent = createSaveContent();
+		ByteBuffer saveContent = createSaveContent();
 
-		try (BufferedWriter out = new BufferedWriter(new FileWriter(strSaveFilepath))) {
-			out.write(saveContent);
+		try (FileChannel channel = FileChannel.open(getSaveFile(strSaveFilepath).toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (saveContent.hasRemaining()) {
+				channel.write(saveContent);
+			}
 		} catch (IOException e) {
 			isBranch = false;
 		}
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
-	private String createSaveContent() {
-		final int NUM_BYTES_IN_ROW = 40;
+	private File getSaveFile(String filename) throws IOException {
+		if (this.saveDirectory == null) {
+			return new File(filename);
+		}
+		if (filename.matches("[A-Za-z0-9_-][A-Za-z0-9._-]*") == false) {
+			throw new IOException("Save file name not allowed");
+		}
+		return new File(this.saveDirectory, filename);
+	}
 
-		StringBuffer result = new StringBuffer();
+	// Save files use the Quetzal format (IFF "FORM" of type "IFZS")
+	//
+	//	+------+------+------+------+-----+------+
+	//	| FORM | len  | IFZS | IFhd | ... | Stks |
+	//	+------+------+------+------+-----+------+
+	//
+	//	IFhd = release number, serial code, checksum, pc (3 bytes)
+	//	CMem = dynamic memory XORed with the story file, runs of zeros as 0x00 + (run length - 1)
+	//	UMem = dynamic memory uncompressed (read only)
+	//	Stks = frames, oldest first, the first one being a dummy frame holding the main routine's evaluation stack
+	//
+	//	Frame
+	//
+	//	+-----+-+-+-+--+-----+-----+ P = Return pc, pointing after the result variable byte
+	//	|PPP  |F|V|A|NN|L...L|S...S| F = # Locals (bits 0..3)
+	//	+-----+-+-+-+--+-----+-----+ V = Result variable
+	//	                             A = Arguments supplied (not tracked, v3 has no check_arg_count)
+	//	                             N = # Words on the evaluation stack
+	//	                             L = Locals (words)
+	//	                             S = Evaluation stack (words)
+	//
+	// Older save files in the hex text format are still restored.
+
+	private static final byte[] ID_FORM = "FORM".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID_IFZS = "IFZS".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID_IFHD = "IFhd".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID_CMEM = "CMem".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID_UMEM = "UMem".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID_STKS = "Stks".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int CHUNK_HEADER_SIZE = 8;
+	private static final int IFHD_SIZE = 13;
+	private static final int FRAME_HEADER_SIZE = 8;
+
+	private ByteBuffer createSaveContent() {
+		byte[] dynamicMemory = this.zm.getDynamicMemory();
+		byte[] pristineDynamicMemory = this.zm.storyFile.pristineDynamicMemory;
+		int[] stack = this.zm.stack.stack;
+		int stackSize = this.zm.stack.topIndex + 1;
+
+		// frames, oldest first
+		List<Integer> frameIndices = new ArrayList<Integer>();
+		for (int frameIndex = this.zm.stack.stackFrameIndex; frameIndex != -1; frameIndex = stack[frameIndex]) {
+			frameIndices.add(0, frameIndex);
+		}
+
+		int maxSize = 12 + CHUNK_HEADER_SIZE + IFHD_SIZE + 1 //
+				+ CHUNK_HEADER_SIZE + (dynamicMemory.length * 2) + 1 //
+				+ CHUNK_HEADER_SIZE + ((frameIndices.size() + 1) * FRAME_HEADER_SIZE) + (stackSize * 2);
+		ByteBuffer out = ByteBuffer.allocate(maxSize);
+
+		out.put(ID_FORM);
+		out.putInt(0); // patched below
+		out.put(ID_IFZS);
+
+		int chunkPos = beginChunk(out, ID_IFHD);
+		out.putShort((short) this.zm.header.releaseNumber);
+		out.put(this.zm.header.serialCode.getBytes(StandardCharsets.ISO_8859_1), 0, 6);
+		out.putShort((short) this.zm.header.checksum);
+		putInt24(out, this.zm.pc);
+		endChunk(out, chunkPos);
+
+		chunkPos = beginChunk(out, ID_CMEM);
+		int zeroRunLen = 0;
+		for (int i = 0; i < dynamicMemory.length; i++) {
+			int xor = (dynamicMemory[i] ^ pristineDynamicMemory[i]) & 0xFF;
+			if (xor == 0) {
+				zeroRunLen++;
+				continue;
+			}
+			zeroRunLen = putZeroRun(out, zeroRunLen);
+			out.put((byte) xor);
+		}
+		// a trailing run of zeros is implied
+		endChunk(out, chunkPos);
+
+		chunkPos = beginChunk(out, ID_STKS);
+		int evalStackEnd = frameIndices.isEmpty() ? stackSize : frameIndices.get(0) - 2;
+		putFrameHeader(out, 0, 0, 0, evalStackEnd);
+		putWords(out, stack, 0, evalStackEnd);
+		for (int i = 0; i < frameIndices.size(); i++) {
+			int frameIndex = frameIndices.get(i);
+			int returnPc = (stack[frameIndex - 2] << 16) | stack[frameIndex - 1];
+			int numLocals = stack[frameIndex + 1];
+			int localsStart = frameIndex + 2;
+			int evalStackStart = localsStart + numLocals;
+			evalStackEnd = (i + 1 < frameIndices.size()) ? frameIndices.get(i + 1) - 2 : stackSize;
+
+			putFrameHeader(out, returnPc + 1, numLocals, this.zm.getByte(returnPc), evalStackEnd - evalStackStart);
+			putWords(out, stack, localsStart, evalStackStart);
+			putWords(out, stack, evalStackStart, evalStackEnd);
+		}
+		endChunk(out, chunkPos);
 
-		result.append("releasenumber.serialcode" + CR);
-		result.append(String.format("%02d.%6s", this.zm.header.releaseNumber, this.zm.header.serialCode) + CR);
+		out.putInt(4, out.position() - 8);
+		out.flip();
+		return out;
+	}
 
-		result.append("pc" + CR);
-		result.append(String.format("%04x", this.zm.pc) + CR);
+	private static int beginChunk(ByteBuffer out, byte[] id) {
+		out.put(id);
+		out.putInt(0); // patched by endChunk()
+		return out.position();
+	}
 
-		result.append("stack" + CR);
-		result.append(String.format("%04x", this.zm.stack.topIndex + 1) + CR);
-		for (int i = 0; i < (this.zm.stack.topIndex + 1); i++) {
-			if ((i > 0) && ((i % NUM_BYTES_IN_ROW) == 0)) {
-				result.append(CR);
-			}
-			result.append(String.format("%04x ", this.zm.stack.peek(i) & 0xFFFF));
+	private static void endChunk(ByteBuffer out, int chunkPos) {
+		int chunkLen = out.position() - chunkPos;
+		out.putInt(chunkPos - 4, chunkLen);
+		if ((chunkLen % 2) != 0) {
+			out.put((byte) 0);
 		}
-		result.append(CR);
+	}
 
-		result.append("stack.topindex" + CR);
-		result.append(String.format("%04x", this.zm.stack.topIndex) + CR);
+	private static int putZeroRun(ByteBuffer out, int zeroRunLen) {
+		while (zeroRunLen > 0) {
+			int len = Math.min(zeroRunLen, 256);
+			out.put((byte) 0);
+			out.put((byte) (len - 1));
+			zeroRunLen -= len;
+		}
+		return 0;
+	}
 
-		result.append("stack.stackframeindex" + CR);
-		result.append(String.format("%04x", this.zm.stack.stackFrameIndex) + CR);
+	private static void putFrameHeader(ByteBuffer out, int returnPc, int numLocals, int resultVar, int numWords) {
+		putInt24(out, returnPc);
+		out.put((byte) numLocals);
+		out.put((byte) resultVar);
+		out.put((byte) 0);
+		out.putShort((short) numWords);
+	}
 
-		result.append("dynamicmemory" + CR);
-		result.append(String.format("%04x", this.zm.header.baseStaticMemoryAddr) + CR);
-		for (int i = 0; i < this.zm.header.baseStaticMemoryAddr; i++) {
-			if ((i > 0) && ((i % NUM_BYTES_IN_ROW) == 0)) {
-				result.append(CR);
-			}
-			result.append(String.format("%02x ", this.zm.getByte(i)));
+	private static void putWords(ByteBuffer out, int[] values, int start, int end) {
+		for (int i = start; i < end; i++) {
+			out.putShort((short) values[i]);
 		}
+	}
 
-		return result.toString();
+	private static void putInt24(ByteBuffer out, int value) {
+		out.put((byte) (value >> 16));
+		out.putShort((short) value);
+	}
+
+	private static int getInt24(ByteBuffer in) {
+		int hi = in.get() & 0xFF;
+		return (hi << 16) | (in.getShort() & 0xFFFF);
 	}
 
 	private void Z_restore() { // BRANCH OP
@@ -954,92 +3151,40 @@ public class ZInterpreter {
 		print("File to restore? >");
 		String strRestoreFilepath = getInput();
 
-		List<String> lines = null;
-		try {
-			lines = Files.readAllLines(new File(strRestoreFilepath).toPath(), StandardCharsets.US_ASCII);
-		} catch (IOException e) {
+		SaveState saveState = null;
+		try (FileChannel channel = FileChannel.open(getSaveFile(strRestoreFilepath).toPath(), StandardOpenOption.READ)) {
+			ByteBuffer in = ByteBuffer.allocate((int) channel.size());
+			while (in.hasRemaining() && (channel.read(in) != -1)) {
+				// read all
+			}
+			in.flip();
+
+			if (isQuetzal(in)) {
+				saveState = readQuetzalSaveContent(in);
+			} else {
+				String text = new String(in.array(), 0, in.limit(), StandardCharsets.US_ASCII);
+				saveState = readTextSaveContent(Arrays.asList(text.split("\r\n|\r|\n")));
+			}
+		} catch (IOException | RuntimeException e) {
 			isBranch = false;
 		}
 
-		int newPc = -1;
-		int newStackTopIndex = -1;
-		int newStackFrameIndex = -1;
-		int[] newStack = null;
-		byte[] newDynamicMemory = null;
-
-		if (isBranch && (lines != null)) {
-			int lineCnt = 0;
-			while (lineCnt < lines.size()) {
-				String line = lines.get(lineCnt);
-
-				if (line.equals("releasenumber.serialcode")) {
-					lineCnt++;
-					String version = String.format("%02d.%6s", this.zm.header.releaseNumber, this.zm.header.serialCode);
-					String versionToCompare = lines.get(lineCnt);
-					if (version.equals(versionToCompare) == false) {
-						isBranch = false;
-						break;
-					}
-				} else if (line.equals("pc")) {
-					lineCnt++;
-					newPc = Integer.parseInt(lines.get(lineCnt), 16);
-				} else if (line.equals("stack.topindex")) {
-					lineCnt++;
-					newStackTopIndex = Integer.parseInt(lines.get(lineCnt), 16);
-				} else if (line.equals("stack.stackframeindex")) {
-					lineCnt++;
-					newStackFrameIndex = Integer.parseInt(lines.get(lineCnt), 16);
-				} else if (line.equals("stack")) {
-					lineCnt++;
-					int newStackLen = Integer.parseInt(lines.get(lineCnt), 16);
-					newStack = new int[newStackLen];
-
-					int j = 0;
-					lineCnt++;
-					while (lineCnt < lines.size()) {
-						String[] aStr = lines.get(lineCnt).split(" ");
-						if (isHexNumber(aStr[0]) == false) {
-							lineCnt--;
-							break;
-						}
-						for (int i = 0; i < aStr.length; i++) {
-							newStack[j] = Integer.parseInt(aStr[i], 16);
-							j++;
-						}
-						lineCnt++;
-					}
-				} else if (line.equals("dynamicmemory")) {
-					lineCnt++;
-					int newDynamicMemoryLen = Integer.parseInt(lines.get(lineCnt), 16);
-					newDynamicMemory = new byte[newDynamicMemoryLen];
-
-					int j = 0;
-					lineCnt++;
-					while (lineCnt < lines.size()) {
-						String[] aStr = lines.get(lineCnt).split(" ");
-						if (isHexNumber(aStr[0]) == false) {
-							lineCnt--;
-							break;
-						}
-
-						for (int i = 0; i < aStr.length; i++) {
-							newDynamicMemory[j] = (byte) Integer.parseInt(aStr[i], 16);
-							j++;
-						}
-						lineCnt++;
-					}
-				}
-				lineCnt++;
-			}
+		if ((saveState != null) && (saveState.stack.length > this.zm.getMaxStackSize())) {
+			isBranch = false; // checked before anything changes, as the stack cannot grow that far
 		}
 
-		boolean isComplete = (newPc != -1) && (newStackTopIndex != -1) && (newStackFrameIndex != -1) && ((newStack != null) & (newDynamicMemory != null));
-		if (isComplete) {
-			this.zm.pc = newPc;
-			this.zm.stack.topIndex = newStackTopIndex;
-			this.zm.stack.stackFrameIndex = newStackFrameIndex;
-			System.arraycopy(newStack, 0, this.zm.stack.stack, 0, newStack.length);
-			System.arraycopy(newDynamicMemory, 0, this.zm.story, 0, newDynamicMemory.length);
+		if (isBranch && (saveState != null)) {
+			this.zm.pc = saveState.pc;
+			this.zm.stack.grow(saveState.stack.length);
+			this.zm.stack.topIndex = saveState.stackTopIndex;
+			this.zm.stack.stackFrameIndex = saveState.stackFrameIndex;
+			System.arraycopy(saveState.stack, 0, this.zm.stack.stack, 0, saveState.stack.length);
+			this.zm.updateFrameCache();
+			this.zm.setDynamicMemory(saveState.dynamicMemory);
+			this.zm.markAllDirty();
+			this.zm.invalidateDynamicMemoryInstructions();
+			this.zm.rebuildObjectIndex();
+			this.zm.clearUndo();
 		} else {
 			isBranch = false;
 		}
@@ -1049,35 +3194,245 @@ public class ZInterpreter {
 		restoreScore();
 	}
 
-	private boolean isHexNumber(String str) {
-		try {
-			Integer.parseInt(str, 16);
-		} catch (NumberFormatException e) {
-			return false;
+	private static boolean isQuetzal(ByteBuffer in) {
+		return (in.remaining() >= 12) && hasId(in, 0, ID_FORM) && hasId(in, 8, ID_IFZS);
+	}
+
+	private static boolean hasId(ByteBuffer in, int pos, byte[] id) {
+		for (int i = 0; i < id.length; i++) {
+			if (in.get(pos + i) != id[i]) {
+				return false;
+			}
 		}
 		return true;
 	}
 
-	private void Z_restart() {
-		try {
-			byte[] story = Files.readAllBytes(this.storyFilePath);
-			System.arraycopy(story, 0, this.zm.story, 0, story.length);
-			this.zm.stack.reset();
-			this.zm.pc = this.zm.header.initialPC;
-		} catch (IOException e) {
-			// ignore
+	private SaveState readQuetzalSaveContent(ByteBuffer in) {
+		int formEnd = Math.min(in.getInt(4) + 8, in.limit());
+		in.position(12);
+
+		SaveState result = new SaveState();
+		boolean isHeaderOk = false;
+		while (in.position() + CHUNK_HEADER_SIZE <= formEnd) {
+			int chunkPos = in.position();
+			int chunkLen = in.getInt(chunkPos + 4);
+			int chunkStart = chunkPos + CHUNK_HEADER_SIZE;
+			int chunkEnd = chunkStart + chunkLen;
+			if ((chunkLen < 0) || (chunkEnd > formEnd)) {
+				return null;
+			}
+			ByteBuffer chunk = (ByteBuffer) in.duplicate().position(chunkStart).limit(chunkEnd);
+
+			if (hasId(in, chunkPos, ID_IFHD)) {
+				isHeaderOk = readQuetzalHeader(chunk, result);
+				if (isHeaderOk == false) {
+					return null;
+				}
+			} else if (hasId(in, chunkPos, ID_CMEM)) {
+				result.dynamicMemory = readQuetzalCompressedMemory(chunk);
+			} else if (hasId(in, chunkPos, ID_UMEM)) {
+				if (chunkLen == this.zm.dynamicMemoryLength) {
+					result.dynamicMemory = new byte[chunkLen];
+					chunk.get(result.dynamicMemory);
+				}
+			} else if (hasId(in, chunkPos, ID_STKS)) {
+				readQuetzalStacks(chunk, result);
+			}
+			// other chunks are ignored
+
+			in.position(Math.min(chunkEnd + (chunkLen % 2), formEnd));
 		}
 
-		restoreScore();
+		boolean isComplete = isHeaderOk && (result.stack != null) && (result.dynamicMemory != null);
+		return isComplete ? result : null;
 	}
 
-	private void Z_ret_popped() {
-		int value = this.zm.stack.pop();
-		Z_ret(value);
+	private boolean readQuetzalHeader(ByteBuffer chunk, SaveState result) {
+		if (chunk.remaining() < IFHD_SIZE) {
+			return false;
+		}
+		int releaseNumber = chunk.getShort() & 0xFFFF;
+		byte[] bytesSerialCode = new byte[6];
+		chunk.get(bytesSerialCode);
+		int checksum = chunk.getShort() & 0xFFFF;
+		result.pc = getInt24(chunk);
+
+		return (releaseNumber == this.zm.header.releaseNumber) //
+				&& new String(bytesSerialCode, StandardCharsets.ISO_8859_1).equals(this.zm.header.serialCode) //
+				&& (checksum == this.zm.header.checksum);
 	}
 
-	private void Z_pop() {
-		this.zm.stack.pop();
+	private byte[] readQuetzalCompressedMemory(ByteBuffer chunk) {
+		byte[] result = this.zm.storyFile.pristineDynamicMemory.clone();
+		int i = 0;
+		while (chunk.hasRemaining()) {
+			int xor = chunk.get() & 0xFF;
+			if (xor == 0) {
+				i += (chunk.get() & 0xFF) + 1;
+				continue;
+			}
+			if (i >= result.length) {
+				return null;
+			}
+			result[i] ^= xor;
+			i++;
+		}
+		return (i <= result.length) ? result : null;
+	}
+
+	private void readQuetzalStacks(ByteBuffer chunk, SaveState result) {
+		int[] stack = new int[chunk.remaining() / 2]; // a frame never takes more entries than half its bytes
+		int stackSize = 0;
+		int stackFrameIndex = -1;
+
+		boolean isDummyFrame = true;
+		while (chunk.remaining() >= FRAME_HEADER_SIZE) {
+			int returnPc = getInt24(chunk);
+			int numLocals = chunk.get() & 0x0F;
+			chunk.get(); // result variable, re-read from the call instruction on return
+			chunk.get(); // arguments supplied
+			int numWords = chunk.getShort() & 0xFFFF;
+
+			if (isDummyFrame) {
+				isDummyFrame = false;
+			} else {
+				int returnAddr = returnPc - 1;
+				stack[stackSize++] = (returnAddr >> 16) & 0xFFFF;
+				stack[stackSize++] = returnAddr & 0xFFFF;
+				stack[stackSize++] = stackFrameIndex;
+				stackFrameIndex = stackSize - 1;
+				stack[stackSize++] = numLocals;
+			}
+
+			int numEntries = numLocals + numWords;
+			if (chunk.remaining() < (numEntries * 2)) {
+				return;
+			}
+			for (int i = 0; i < numEntries; i++) {
+				stack[stackSize++] = chunk.getShort() & 0xFFFF;
+			}
+		}
+
+		result.stack = Arrays.copyOf(stack, stackSize);
+		result.stackTopIndex = stackSize - 1;
+		result.stackFrameIndex = stackFrameIndex;
+	}
+
+	private SaveState readTextSaveContent(List<String> lines) {
+		int newPc = -1;
+		int newStackTopIndex = -1;
+		int newStackFrameIndex = -1;
+		int[] newStack = null;
+		byte[] newDynamicMemory = null;
+
+		int lineCnt = 0;
+		while (lineCnt < lines.size()) {
+			String line = lines.get(lineCnt);
+
+			if (line.equals("releasenumber.serialcode")) {
+				lineCnt++;
+				String version = String.format("%02d.%6s", this.zm.header.releaseNumber, this.zm.header.serialCode);
+				String versionToCompare = lines.get(lineCnt);
+				if (version.equals(versionToCompare) == false) {
+					return null;
+				}
+			} else if (line.equals("pc")) {
+				lineCnt++;
+				newPc = Integer.parseInt(lines.get(lineCnt), 16);
+			} else if (line.equals("stack.topindex")) {
+				lineCnt++;
+				newStackTopIndex = Integer.parseInt(lines.get(lineCnt), 16);
+			} else if (line.equals("stack.stackframeindex")) {
+				lineCnt++;
+				newStackFrameIndex = Integer.parseInt(lines.get(lineCnt), 16);
+			} else if (line.equals("stack")) {
+				lineCnt++;
+				int newStackLen = Integer.parseInt(lines.get(lineCnt), 16);
+				newStack = new int[newStackLen];
+
+				int j = 0;
+				lineCnt++;
+				while (lineCnt < lines.size()) {
+					String[] aStr = lines.get(lineCnt).split(" ");
+					if (isHexNumber(aStr[0]) == false) {
+						lineCnt--;
+						break;
+					}
+					for (int i = 0; i < aStr.length; i++) {
+						newStack[j] = Integer.parseInt(aStr[i], 16);
+						j++;
+					}
+					lineCnt++;
+				}
+			} else if (line.equals("dynamicmemory")) {
+				lineCnt++;
+				int newDynamicMemoryLen = Integer.parseInt(lines.get(lineCnt), 16);
+				newDynamicMemory = new byte[newDynamicMemoryLen];
+
+				int j = 0;
+				lineCnt++;
+				while (lineCnt < lines.size()) {
+					String[] aStr = lines.get(lineCnt).split(" ");
+					if (isHexNumber(aStr[0]) == false) {
+						lineCnt--;
+						break;
+					}
+
+					for (int i = 0; i < aStr.length; i++) {
+						newDynamicMemory[j] = (byte) Integer.parseInt(aStr[i], 16);
+						j++;
+					}
+					lineCnt++;
+				}
+			}
+			lineCnt++;
+		}
+
+		boolean isComplete = (newPc != -1) && (newStackTopIndex != -1) && (newStackFrameIndex != -1) && ((newStack != null) & (newDynamicMemory != null));
+		if (isComplete == false) {
+			return null;
+		}
+
+		// the text format wrote the outermost frame link -1 as ffff
+		if (newStackFrameIndex == 0xFFFF) {
+			newStackFrameIndex = -1;
+		}
+		for (int frameIndex = newStackFrameIndex; frameIndex != -1; frameIndex = newStack[frameIndex]) {
+			if (newStack[frameIndex] == 0xFFFF) {
+				newStack[frameIndex] = -1;
+			}
+		}
+
+		SaveState result = new SaveState();
+		result.pc = newPc;
+		result.stack = newStack;
+		result.stackTopIndex = newStackTopIndex;
+		result.stackFrameIndex = newStackFrameIndex;
+		result.dynamicMemory = newDynamicMemory;
+		return result;
+	}
+
+	private boolean isHexNumber(String str) {
+		try {
+			Integer.parseInt(str, 16);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private void Z_restart() {
+		this.zm.restart();
+		restoreScore();
+	}
+
+	private void Z_ret_popped() {
+		int value = this.zm.stack.pop();
+		Z_ret(value);
+	}
+
+	private void Z_pop() {
+		this.zm.stack.pop();
 	}
 
 	private void Z_quit() {
@@ -1096,35 +3451,35 @@ public class ZInterpreter {
 	private void Z_verify() { // BRANCH OP
 		// ignore
 		boolean isBranch = true;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	// 1OP instructions
 
 	private void Z_jz(int arg) { // BRANCH OP
 		boolean isBranch = (arg == 0);
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_get_sibling(int arg) { // STORE + BRANCH OP
 		int siblingNumber = this.zm.getSiblingNumber(arg);
-		this.zm.consumeAndStore(siblingNumber);
+		this.zm.store(siblingNumber);
 
 		boolean isBranch = siblingNumber != 0;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_get_child(int arg) { // STORE + BRANCH OP
 		int childNumber = this.zm.getChildNumber(arg);
-		this.zm.consumeAndStore(childNumber);
+		this.zm.store(childNumber);
 
 		boolean isBranch = childNumber != 0;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_get_parent(int arg) { // STORE OP
 		int parentNumber = this.zm.getParentNumber(arg);
-		this.zm.consumeAndStore(parentNumber);
+		this.zm.store(parentNumber);
 	}
 
 	private void Z_get_prop_len(int arg) { // STORE OP
@@ -1133,7 +3488,7 @@ public class ZInterpreter {
 		if (propertyAddr != 0) {
 			value = (this.zm.getByte(propertyAddr - 1) >> 5) + 1;
 		}
-		this.zm.consumeAndStore(value);
+		this.zm.store(value);
 	}
 
 	private void Z_inc(int arg) {
@@ -1152,8 +3507,7 @@ public class ZInterpreter {
 
 	private void Z_print_addr(int arg) {
 		if (this.zm.isDynamicOrStaticMemory(arg)) {
-			String str = this.zm.decodeZString(arg);
-			print(str);
+			this.zm.printZString(arg, this.buffer);
 		} else {
 			halt(String.format("Z_print_addr() - Address 0x%x not in dynamic or static memory", arg));
 		}
@@ -1174,16 +3528,18 @@ public class ZInterpreter {
 		int siblingNumber = this.zm.getSiblingNumber(objNumber);
 		int childOfParentNumber = this.zm.getChildNumber(parentNumber);
 
+		int prevObjNumber = 0;
 		boolean isFirstChildOfParent = (objNumber == childOfParentNumber);
 		if (isFirstChildOfParent) {
 			this.zm.setChildNumber(parentNumber, siblingNumber);
 		} else {
-			int prevObjNumber = childOfParentNumber;
-			while (this.zm.getSiblingNumber(prevObjNumber) != objNumber) {
-				prevObjNumber = this.zm.getSiblingNumber(prevObjNumber);
-			}
+			prevObjNumber = this.zm.getPrevSiblingNumber(objNumber, childOfParentNumber);
 			this.zm.setSiblingNumber(prevObjNumber, siblingNumber);
 		}
+		if (siblingNumber != 0) {
+			this.zm.setPrevSiblingNumber(siblingNumber, prevObjNumber);
+		}
+		this.zm.setPrevSiblingNumber(objNumber, 0);
 		this.zm.setSiblingNumber(objNumber, 0);
 		this.zm.setParentNumber(objNumber, 0);
 	}
@@ -1191,8 +3547,7 @@ public class ZInterpreter {
 	private void Z_print_obj(int arg) {
 		int objAddr = this.zm.getObjectAddress(arg);
 		int propAddr = this.zm.getWord(objAddr + 7);
-		String str = this.zm.decodeZString(propAddr + 1);
-		print(str);
+		this.zm.printZString(propAddr + 1, this.buffer);
 	}
 
 	private void Z_ret(int arg) {
@@ -1207,8 +3562,7 @@ public class ZInterpreter {
 	private void Z_print_paddr(int arg) {
 		int addr = this.zm.getUnpackedAddress(arg);
 		if (this.zm.isHighMemory(addr)) {
-			String str = this.zm.decodeZString(addr);
-			print(str);
+			this.zm.printZString(addr, this.buffer);
 		} else {
 			halt(String.format("Z_print_paddr() - Address 0x%x not in high memory", arg));
 		}
@@ -1216,13 +3570,13 @@ public class ZInterpreter {
 
 	private void Z_load(int arg) { // STORE OP
 		int value = this.zm.getVariableValue(arg);
-		this.zm.consumeAndStore(value);
+		this.zm.store(value);
 	}
 
 	private void Z_not(int arg) { // STORE OP
 		int value = this.zm.toUint16(arg);
 		int result = value ^ 0xFFFF;
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	// 2OP instructions
@@ -1230,27 +3584,27 @@ public class ZInterpreter {
 	// NOTE: JE can take 2..4 operands
 	private void Z_je(int args[]) { // BRANCH OP
 		boolean isBranch = false;
-		for (int i = 1; i < args.length; i++) {
+		for (int i = 1; i < this.zm.numOperands; i++) {
 			if (args[0] == args[i]) {
 				isBranch = true;
 				break;
 			}
 		}
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_jl(int args[]) { // BRANCH OP
 		int value1 = this.zm.toInt32(args[0]);
 		int value2 = this.zm.toInt32(args[1]);
 		boolean isBranch = value1 < value2;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_jg(int args[]) { // BRANCH OP
 		int value1 = this.zm.toInt32(args[0]);
 		int value2 = this.zm.toInt32(args[1]);
 		boolean isBranch = value1 > value2;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_dec_chk(int args[]) { // BRANCH OP
@@ -1261,7 +3615,7 @@ public class ZInterpreter {
 		int value1 = this.zm.toInt32(this.zm.getVariableValue(varNumber));
 		int value2 = this.zm.toInt32(value);
 		boolean isBranch = value1 < value2;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_inc_chk(int args[]) { // BRANCH OP
@@ -1272,7 +3626,7 @@ public class ZInterpreter {
 		int value1 = this.zm.toInt32(this.zm.getVariableValue(varNumber));
 		int value2 = this.zm.toInt32(value);
 		boolean isBranch = value1 > value2;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_jin(int args[]) { // BRANCH OP
@@ -1281,44 +3635,40 @@ public class ZInterpreter {
 
 		int objNumberParentOfChild = this.zm.getParentNumber(objNumberChild);
 		boolean isBranch = objNumberParentOfChild == objNumberParent;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_test(int args[]) { // BRANCH OP
 		int bitmap = this.zm.toUint16(args[0]); // is conversion necessary?
 		int flags = this.zm.toUint16(args[1]);
 		boolean isBranch = (bitmap & flags) == flags;
-		this.zm.consumeAndBranch(isBranch);
+		this.zm.branch(isBranch);
 	}
 
 	private void Z_or(int args[]) { // STORE OP
 		int value1 = this.zm.toUint16(args[0]);
 		int value2 = this.zm.toUint16(args[1]);
 		int result = value1 | value2;
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_and(int args[]) { // STORE OP
 		int value1 = this.zm.toUint16(args[0]);
 		int value2 = this.zm.toUint16(args[1]);
 		int result = value1 & value2;
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_test_attr(int args[]) { // BRANCH OP
-		int objNumber = args[0];
-		int bitNumber = args[1];
+		boolean isBranch = testAttr(args[0], args[1]);
+		this.zm.branch(isBranch);
+	}
+
+	private boolean testAttr(int objNumber, int bitNumber) {
 		if ((bitNumber < 0) || (bitNumber > 31)) {
 			halt(String.format("Z_test_attr() - Bit number %d out of bounds [%d..%d]", bitNumber, 0, 31));
 		}
-
-		int objAddr = this.zm.getObjectAddress(objNumber);
-		int byteOffset = bitNumber >> 3;
-		int mask = 1 << (7 - (bitNumber & 0b111));
-
-		int aByte = this.zm.getByte(objAddr + byteOffset);
-		boolean isBranch = (aByte & mask) != 0;
-		this.zm.consumeAndBranch(isBranch);
+		return this.zm.isAttributeSet(objNumber, bitNumber);
 	}
 
 	private void Z_set_attr(int args[]) {
@@ -1328,12 +3678,7 @@ public class ZInterpreter {
 			halt(String.format("Z_set_attr() - Bit number %d out of bounds [%d..%d]", bitNumber, 0, 31));
 		}
 
-		int objAddr = this.zm.getObjectAddress(objNumber);
-		int byteOffset = bitNumber >> 3;
-		int mask = 1 << (7 - (bitNumber & 0b111));
-
-		int aByte = this.zm.getByte(objAddr + byteOffset);
-		this.zm.setByte(objAddr + byteOffset, aByte | mask);
+		this.zm.setAttribute(objNumber, bitNumber, true);
 	}
 
 	private void Z_clear_attr(int args[]) {
@@ -1343,12 +3688,7 @@ public class ZInterpreter {
 			halt(String.format("Z_set_attr() - Bit number %d out of bounds [%d..%d]", bitNumber, 0, 31));
 		}
 
-		int objAddr = this.zm.getObjectAddress(objNumber);
-		int byteOffset = bitNumber >> 3;
-		int mask = 1 << (7 - (bitNumber & 0b111));
-
-		int aByte = this.zm.getByte(objAddr + byteOffset);
-		this.zm.setByte(objAddr + byteOffset, aByte & ~mask);
+		this.zm.setAttribute(objNumber, bitNumber, false);
 	}
 
 	private void Z_store(int args[]) {
@@ -1370,35 +3710,47 @@ public class ZInterpreter {
 
 		Z_remove_obj(objNumber);
 
-		this.zm.setSiblingNumber(objNumber, this.zm.getChildNumber(destObjNumber));
+		int childNumber = this.zm.getChildNumber(destObjNumber);
+		this.zm.setSiblingNumber(objNumber, childNumber);
+		if (childNumber != 0) {
+			this.zm.setPrevSiblingNumber(childNumber, objNumber);
+		}
 		this.zm.setChildNumber(destObjNumber, objNumber);
 		this.zm.setParentNumber(objNumber, destObjNumber);
 	}
 
 	private void Z_loadw(int args[]) { // STORE OP
-		int addr = args[0] + (args[1] * ZMachine.WORD_SIZE);
-		if (this.zm.isDynamicOrStaticMemory(addr)) {
-			int result = this.zm.getWord(addr);
-			this.zm.consumeAndStore(result);
-		} else {
+		int result = loadw(args[0], args[1]);
+		this.zm.store(result);
+	}
+
+	private int loadw(int arrayAddr, int wordIndex) {
+		int addr = arrayAddr + (wordIndex * ZMachine.WORD_SIZE);
+		if (this.zm.isDynamicOrStaticMemory(addr) == false) {
 			halt(String.format("Z_loadw() - Address 0x%x not in dynamic or static memory", addr));
 		}
+		return this.zm.getWord(addr);
 	}
 
 	private void Z_loadb(int args[]) { // STORE OP
-		int addr = args[0] + args[1];
-		if (this.zm.isDynamicOrStaticMemory(addr)) {
-			int result = this.zm.getByte(addr);
-			this.zm.consumeAndStore(result);
-		} else {
+		int result = loadb(args[0], args[1]);
+		this.zm.store(result);
+	}
+
+	private int loadb(int arrayAddr, int byteIndex) {
+		int addr = arrayAddr + byteIndex;
+		if (this.zm.isDynamicOrStaticMemory(addr) == false) {
 			halt(String.format("Z_loadb() - Address 0x%x not in dynamic or static memory", addr));
 		}
+		return this.zm.getByte(addr);
 	}
 
 	private void Z_get_prop(int args[]) { // STORE OP
-		int objNumber = args[0];
-		int propNumber = args[1];
+		int propValue = getProp(args[0], args[1]);
+		this.zm.store(propValue);
+	}
 
+	private int getProp(int objNumber, int propNumber) {
 		int propValue = -1;
 		int propAddr = getPropAddress(objNumber, propNumber, /* isAcceptPropNumberZero */ false);
 		if (propAddr != 0) {
@@ -1415,7 +3767,7 @@ public class ZInterpreter {
 			int defaultValueAddr = this.zm.header.objectTableAddr + ((propNumber - 1) * ZMachine.WORD_SIZE);
 			propValue = this.zm.getWord(defaultValueAddr);
 		}
-		this.zm.consumeAndStore(propValue);
+		return propValue;
 	}
 
 	private void Z_get_prop_addr(int args[]) { // STORE OP
@@ -1424,7 +3776,7 @@ public class ZInterpreter {
 
 		int propAddr = getPropAddress(objNumber, propNumber, /* isAcceptPropNumberZero */ false);
 		int value = (propAddr != 0) ? propAddr + 1 : 0;
-		this.zm.consumeAndStore(value);
+		this.zm.store(value);
 	}
 
 	private void Z_get_next_prop(int args[]) { // STORE OP
@@ -1446,28 +3798,28 @@ public class ZInterpreter {
 			int nextPropDescByte = this.zm.getByte(nextPropAddr);
 			propValue = nextPropDescByte & 0b1_1111;
 		}
-		this.zm.consumeAndStore(propValue);
+		this.zm.store(propValue);
 	}
 
 	private void Z_add(int args[]) { // STORE OP
 		int value1 = this.zm.toInt32(args[0]);
 		int value2 = this.zm.toInt32(args[1]);
 		int result = this.zm.toUint16(value1 + value2);
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_sub(int args[]) { // STORE OP
 		int value1 = this.zm.toInt32(args[0]);
 		int value2 = this.zm.toInt32(args[1]);
 		int result = this.zm.toUint16(value1 - value2);
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_mul(int args[]) { // STORE OP
 		int value1 = this.zm.toInt32(args[0]);
 		int value2 = this.zm.toInt32(args[1]);
 		int result = this.zm.toUint16(value1 * value2);
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_div(int args[]) { // STORE OP
@@ -1478,7 +3830,7 @@ public class ZInterpreter {
 		}
 
 		int result = this.zm.toUint16(value1 / value2);
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	private void Z_mod(int args[]) {// STORE OP
@@ -1489,20 +3841,22 @@ public class ZInterpreter {
 		}
 
 		int result = this.zm.toUint16(value1 % value2);
-		this.zm.consumeAndStore(result);
+		this.zm.store(result);
 	}
 
 	// VAR instructions
 
 	private void Z_call(int args[]) { // STORE OP
-		this.zm.zmcall(args);
+		this.zm.zmcall(args, this.zm.numOperands);
 		// store is done in Z_ret()
 	}
 
 	private void Z_storew(int args[]) {
-		int addr = args[0] + (args[1] * ZMachine.WORD_SIZE);
-		int value = args[2];
+		storew(args[0], args[1], args[2]);
+	}
 
+	private void storew(int arrayAddr, int wordIndex, int value) {
+		int addr = arrayAddr + (wordIndex * ZMachine.WORD_SIZE);
 		if (this.zm.isDynamicMemory(addr)) {
 			this.zm.setWord(addr, value);
 		} else {
@@ -1511,9 +3865,11 @@ public class ZInterpreter {
 	}
 
 	private void Z_storeb(int args[]) {
-		int addr = args[0] + args[1];
-		int value = args[2];
+		storeb(args[0], args[1], args[2]);
+	}
 
+	private void storeb(int arrayAddr, int byteIndex, int value) {
+		int addr = arrayAddr + byteIndex;
 		if (this.zm.isDynamicMemory(addr)) {
 			this.zm.setByte(addr, value);
 		} else {
@@ -1522,35 +3878,17 @@ public class ZInterpreter {
 	}
 
 	private int getPropAddress(int objNumber, int propNumber, boolean isAcceptPropNumberZero) {
-		int objAddr = this.zm.getObjectAddress(objNumber);
+		this.zm.getObjectAddress(objNumber); // checks the object number
 
 		int minAcceptedPropNumber = isAcceptPropNumberZero ? 0 : 1;
 		if ((propNumber < minAcceptedPropNumber) || (propNumber > 255)) {
 			halt(String.format("getPropAddress() - Property number %d of object %d out of bounds [%d..%d]", propNumber, objNumber, minAcceptedPropNumber, 31));
 		}
 
-		int propAddr = this.zm.getWord(objAddr + 7);
-		int nameLength = this.zm.getByte(propAddr);
-		propAddr += 1 + (nameLength * 2);
-
-		if (isAcceptPropNumberZero && (propNumber == 0)) {
-			return propAddr;
-		}
-
-		while (true) {
-			int propDescByte = this.zm.getByte(propAddr);
-			if (propDescByte == 0) {
-				return 0;
-			}
-
-			int propNumberToCompare = propDescByte & 0b1_1111;
-			if (propNumber == propNumberToCompare) {
-				return propAddr;
-			}
-
-			int propLen = (propDescByte >> 5) + 1;
-			propAddr += 1 + propLen;
+		if (propNumber > ZMachine.NUM_PROPERTIES) {
+			return 0;
 		}
+		return this.zm.getPropertyAddress(objNumber, propNumber);
 	}
 
 	private void Z_put_prop(int args[]) {
@@ -1575,21 +3913,46 @@ public class ZInterpreter {
 	}
 
 	private void Z_sread(int args[]) {
-		int textAddr = args[0];
-		int parseAddr = args[1];
-
-		if (this.zm.getByte(textAddr) < 3) {
+		if (this.zm.getByte(args[0]) < 3) {
 			halt("Z_sread() - Text buffer less than 3 bytes long");
 		}
 
 		// TODO: Show status line
 
-		String input = getInput().toLowerCase().trim();
+		this.zm.saveUndoState();
+		if (this.isPausingAtInput) { // resume() goes on from here, with pc, instruction and operands as saved for undo
+			pauseAtInput();
+			return;
+		}
+
+		int inputLen = readInput();
+		while (isUndoCommand(inputLen)) {
+			undoTurn();
+			inputLen = readInput();
+		}
+		storeInput(args, inputLen);
+	}
+
+	private boolean isUndoCommand(int inputLen) {
+		return this.zm.isUndoEnabled() && isMetaCommand(META_COMMAND_UNDO, inputLen); // else the story sees "undo"
+	}
+
+	private void undoTurn() {
+		if (this.zm.restoreUndoState()) {
+			print(INFO_UNDONE + CR + CR + "> "); // the operands are those of the earlier input instruction now
+		} else {
+			print(INFO_NOTHING_TO_UNDO + CR + CR + "> ");
+		}
+	}
+
+	private void storeInput(int args[], int inputLen) { // completes Z_sread() with the input in inputChars
+		int textAddr = args[0];
+		int parseAddr = args[1];
 
 		int maxInputLen = this.zm.getByte(textAddr) - 1;
-		int maxLen = Math.min(maxInputLen, input.length());
+		int maxLen = Math.min(maxInputLen, inputLen);
 		for (int i = 0; i < maxLen; i++) {
-			int chr = input.charAt(i);
+			int chr = this.inputChars[i];
 			this.zm.setByte(textAddr + 1 + i, (byte) chr);
 		}
 		this.zm.setByte(textAddr + 1 + maxLen, 0);
@@ -1599,29 +3962,83 @@ public class ZInterpreter {
 			halt("Z_sread() - Parse buffer less than 1 word long");
 		}
 
-		String wordSeparators = this.zm.getWordSeparators();
-		List<Integer> wordStartPos = new ArrayList<Integer>();
-		List<String> wordTexts = new ArrayList<String>();
+		int numWords = tokenizeInput(inputLen);
 
-		int pos = 0;
+		int numWordsToParse = Math.min(maxWordsToParse, numWords);
+		this.zm.setByte(parseAddr + 1, numWordsToParse);
+
+		for (int i = 0; i < numWordsToParse; i++) {
+			int wordStartPos = this.wordStartPos[i];
+			int wordLen = this.wordLen[i];
+
+			int wordAddr = this.zm.getWordAddr(this.zm.encodeWord(this.inputChars, wordStartPos, wordLen));
+			int wordPos = wordStartPos + 1; // offset to text-buffer
+
+			int wordOffset = parseAddr + 1 + 1 + (i * 4);
+			this.zm.setWord(wordOffset, wordAddr);
+			this.zm.setByte(wordOffset + 2, wordLen);
+			this.zm.setByte(wordOffset + 3, wordPos);
+		}
+	}
+
+	private boolean isMetaCommand(String command, int inputLen) {
+		if (inputLen != command.length()) {
+			return false;
+		}
+		for (int i = 0; i < inputLen; i++) {
+			if (this.inputChars[i] != command.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int readInput() { // reads an input line lower-cased and trimmed into inputChars, returns its length
+		String input = getInput();
+
+		int start = 0;
+		int end = input.length();
+		while ((start < end) && (input.charAt(start) <= ' ')) {
+			start++;
+		}
+		while ((end > start) && (input.charAt(end - 1) <= ' ')) {
+			end--;
+		}
+
+		int inputLen = end - start;
+		if (inputLen > this.inputChars.length) {
+			this.inputChars = new char[inputLen];
+			this.wordStartPos = new int[inputLen];
+			this.wordLen = new int[inputLen];
+		}
+		for (int i = 0; i < inputLen; i++) {
+			this.inputChars[i] = Character.toLowerCase(input.charAt(start + i));
+		}
+		return inputLen;
+	}
+
+	private int tokenizeInput(int inputLen) { // fills wordStartPos and wordLen, returns the number of words
+		int numWords = 0;
 		int startPos = -1;
 		boolean isAddCharacters = false;
 
-		while (pos < input.length()) {
-			String chr = input.substring(pos, pos + 1);
+		for (int pos = 0; pos < inputLen; pos++) {
+			char chr = this.inputChars[pos];
 
-			boolean isWordSeparator = wordSeparators.indexOf(chr) > -1;
-			boolean isWhitespace = chr.equals(" ");
+			boolean isWordSeparator = this.zm.isWordSeparator(chr);
+			boolean isWhitespace = chr == ' ';
 
 			if (isWordSeparator || isWhitespace) {
 				if (isAddCharacters) {
-					wordStartPos.add(startPos);
-					wordTexts.add(input.substring(startPos, pos));
+					this.wordStartPos[numWords] = startPos;
+					this.wordLen[numWords] = pos - startPos;
+					numWords++;
 					isAddCharacters = false;
 				}
 				if (isWordSeparator) {
-					wordStartPos.add(pos);
-					wordTexts.add(chr);
+					this.wordStartPos[numWords] = pos;
+					this.wordLen[numWords] = 1;
+					numWords++;
 				}
 			} else {
 				if (isAddCharacters == false) {
@@ -1629,28 +4046,13 @@ public class ZInterpreter {
 					isAddCharacters = true;
 				}
 			}
-			pos++;
 		}
 		if (isAddCharacters) {
-			wordStartPos.add(startPos);
-			wordTexts.add(input.substring(startPos, pos));
-		}
-
-		int numWordsToParse = Math.min(maxWordsToParse, wordTexts.size());
-		this.zm.setByte(parseAddr + 1, numWordsToParse);
-
-		for (int i = 0; i < numWordsToParse; i++) {
-			String word = wordTexts.get(i);
-
-			int wordAddr = this.zm.getWordAddr(word);
-			int wordLen = word.length();
-			int wordPos = wordStartPos.get(i) + 1; // offset to text-buffer
-
-			int wordOffset = parseAddr + 1 + 1 + (i * 4);
-			this.zm.setWord(wordOffset, wordAddr);
-			this.zm.setByte(wordOffset + 2, wordLen);
-			this.zm.setByte(wordOffset + 3, wordPos);
+			this.wordStartPos[numWords] = startPos;
+			this.wordLen[numWords] = inputLen - startPos;
+			numWords++;
 		}
+		return numWords;
 	}
 
 	private void Z_print_char(int args[]) {
@@ -1658,19 +4060,19 @@ public class ZInterpreter {
 		if (value == 0x0D) {
 			print(ZMachine.EOL);
 		} else if ((value >= 0x20) && (value <= 0x7E)) {
-			print(String.format("%c", value));
+			this.buffer.append((char) value);
 		}
 	}
 
 	private void Z_print_num(int args[]) {
 		int value = this.zm.toInt32(args[0]);
-		print(String.format("%d", value));
+		this.buffer.append(value);
 	}
 
 	private void Z_random(int args[]) { // STORE OP
 		int arg = this.zm.toInt32(args[0]);
 		int value = this.zm.random(arg);
-		this.zm.consumeAndStore(value);
+		this.zm.store(value);
 	}
 
 	private void Z_push(int args[]) {
@@ -1704,312 +4106,671 @@ public class ZInterpreter {
 		// ignore
 	}
 
-	private void call0Op(int opCodeNr) {
-		switch (opCodeNr) {
-			case 0x00:
+	//	Opcode dispatch, a tableswitch indexed by the opcode byte
+	//
+	//	0x00..0x7F  long form      2OP
+	//	0x80..0xAF  short form     1OP
+	//	0xB0..0xBF  short form     0OP
+	//	0xC0..0xDF  variable form  2OP
+	//	0xE0..0xFF  variable form  VAR
+	//
+	//	Each case calls its handler directly, so the JIT sees one monomorphic
+	//	call site per handler and can inline it into the dispatch.
+
+	private void execute(int opCode, int args[]) {
+		switch (opCode) {
+			// 0OP, short form
+			case 0xB0:
 				Z_rtrue();
 				break;
-			case 0x01:
+			case 0xB1:
 				Z_rfalse();
 				break;
-			case 0x02:
+			case 0xB2:
 				Z_print();
 				break;
-			case 0x03:
+			case 0xB3:
 				Z_print_ret();
 				break;
-			case 0x04:
+			case 0xB4:
 				Z_nop();
 				break;
-			case 0x05:
+			case 0xB5:
 				Z_save();
 				break;
-			case 0x06:
+			case 0xB6:
 				Z_restore();
 				break;
-			case 0x07:
+			case 0xB7:
 				Z_restart();
 				break;
-			case 0x08:
+			case 0xB8:
 				Z_ret_popped();
 				break;
-			case 0x09:
+			case 0xB9:
 				Z_pop();
 				break;
-			case 0x0A:
+			case 0xBA:
 				Z_quit();
 				break;
-			case 0x0B:
+			case 0xBB:
 				Z_new_line();
 				break;
-			case 0x0C:
+			case 0xBC:
 				Z_show_status();
 				break;
-			case 0x0D:
+			case 0xBD:
 				Z_verify();
 				break;
-			default:
-				halt(String.format("Illegal opcode number 0OP:0x%x", opCodeNr));
-				break;
-		}
-	}
-
-	private void call1Op(int opCodeNr, int arg) {
-		switch (opCodeNr) {
-			case 0x00:
-				Z_jz(arg);
-				break;
-			case 0x01:
-				Z_get_sibling(arg);
+			// 1OP, short form with a large constant, small constant or variable operand
+			case 0x80:
+			case 0x90:
+			case 0xA0:
+				Z_jz(args[0]);
 				break;
-			case 0x02:
-				Z_get_child(arg);
+			case 0x81:
+			case 0x91:
+			case 0xA1:
+				Z_get_sibling(args[0]);
 				break;
-			case 0x03:
-				Z_get_parent(arg);
+			case 0x82:
+			case 0x92:
+			case 0xA2:
+				Z_get_child(args[0]);
 				break;
-			case 0x04:
-				Z_get_prop_len(arg);
+			case 0x83:
+			case 0x93:
+			case 0xA3:
+				Z_get_parent(args[0]);
 				break;
-			case 0x05:
-				Z_inc(arg);
+			case 0x84:
+			case 0x94:
+			case 0xA4:
+				Z_get_prop_len(args[0]);
 				break;
-			case 0x06:
-				Z_dec(arg);
+			case 0x85:
+			case 0x95:
+			case 0xA5:
+				Z_inc(args[0]);
 				break;
-			case 0x07:
-				Z_print_addr(arg);
+			case 0x86:
+			case 0x96:
+			case 0xA6:
+				Z_dec(args[0]);
 				break;
-			case 0x09:
-				Z_remove_obj(arg);
+			case 0x87:
+			case 0x97:
+			case 0xA7:
+				Z_print_addr(args[0]);
 				break;
-			case 0x0A:
-				Z_print_obj(arg);
+			case 0x89:
+			case 0x99:
+			case 0xA9:
+				Z_remove_obj(args[0]);
 				break;
-			case 0x0B:
-				Z_ret(arg);
+			case 0x8A:
+			case 0x9A:
+			case 0xAA:
+				Z_print_obj(args[0]);
 				break;
-			case 0x0C:
-				Z_jump(arg);
+			case 0x8B:
+			case 0x9B:
+			case 0xAB:
+				Z_ret(args[0]);
 				break;
-			case 0x0D:
-				Z_print_paddr(arg);
+			case 0x8C:
+			case 0x9C:
+			case 0xAC:
+				Z_jump(args[0]);
 				break;
-			case 0x0E:
-				Z_load(arg);
+			case 0x8D:
+			case 0x9D:
+			case 0xAD:
+				Z_print_paddr(args[0]);
 				break;
-			case 0x0F:
-				Z_not(arg);
+			case 0x8E:
+			case 0x9E:
+			case 0xAE:
+				Z_load(args[0]);
 				break;
-			default:
-				halt(String.format("Illegal opcode number 1OP:0x%x", opCodeNr));
+			case 0x8F:
+			case 0x9F:
+			case 0xAF:
+				Z_not(args[0]);
 				break;
-		}
-	}
-
-	private void call2Op(int opCodeNr, int args[]) {
-		switch (opCodeNr) {
+			// 2OP, long form with each pair of small constant and variable operands, and variable form
 			case 0x01:
+			case 0x21:
+			case 0x41:
+			case 0x61:
+			case 0xC1:
 				Z_je(args);
 				break;
 			case 0x02:
+			case 0x22:
+			case 0x42:
+			case 0x62:
+			case 0xC2:
 				Z_jl(args);
 				break;
 			case 0x03:
+			case 0x23:
+			case 0x43:
+			case 0x63:
+			case 0xC3:
 				Z_jg(args);
 				break;
 			case 0x04:
+			case 0x24:
+			case 0x44:
+			case 0x64:
+			case 0xC4:
 				Z_dec_chk(args);
 				break;
 			case 0x05:
+			case 0x25:
+			case 0x45:
+			case 0x65:
+			case 0xC5:
 				Z_inc_chk(args);
 				break;
 			case 0x06:
+			case 0x26:
+			case 0x46:
+			case 0x66:
+			case 0xC6:
 				Z_jin(args);
 				break;
 			case 0x07:
+			case 0x27:
+			case 0x47:
+			case 0x67:
+			case 0xC7:
 				Z_test(args);
 				break;
 			case 0x08:
+			case 0x28:
+			case 0x48:
+			case 0x68:
+			case 0xC8:
 				Z_or(args);
 				break;
 			case 0x09:
+			case 0x29:
+			case 0x49:
+			case 0x69:
+			case 0xC9:
 				Z_and(args);
 				break;
 			case 0x0A:
+			case 0x2A:
+			case 0x4A:
+			case 0x6A:
+			case 0xCA:
 				Z_test_attr(args);
 				break;
 			case 0x0B:
+			case 0x2B:
+			case 0x4B:
+			case 0x6B:
+			case 0xCB:
 				Z_set_attr(args);
 				break;
 			case 0x0C:
+			case 0x2C:
+			case 0x4C:
+			case 0x6C:
+			case 0xCC:
 				Z_clear_attr(args);
 				break;
 			case 0x0D:
+			case 0x2D:
+			case 0x4D:
+			case 0x6D:
+			case 0xCD:
 				Z_store(args);
 				break;
 			case 0x0E:
+			case 0x2E:
+			case 0x4E:
+			case 0x6E:
+			case 0xCE:
 				Z_insert_obj(args);
 				break;
 			case 0x0F:
+			case 0x2F:
+			case 0x4F:
+			case 0x6F:
+			case 0xCF:
 				Z_loadw(args);
 				break;
 			case 0x10:
+			case 0x30:
+			case 0x50:
+			case 0x70:
+			case 0xD0:
 				Z_loadb(args);
 				break;
 			case 0x11:
+			case 0x31:
+			case 0x51:
+			case 0x71:
+			case 0xD1:
 				Z_get_prop(args);
 				break;
 			case 0x12:
+			case 0x32:
+			case 0x52:
+			case 0x72:
+			case 0xD2:
 				Z_get_prop_addr(args);
 				break;
 			case 0x13:
+			case 0x33:
+			case 0x53:
+			case 0x73:
+			case 0xD3:
 				Z_get_next_prop(args);
 				break;
 			case 0x14:
+			case 0x34:
+			case 0x54:
+			case 0x74:
+			case 0xD4:
 				Z_add(args);
 				break;
 			case 0x15:
+			case 0x35:
+			case 0x55:
+			case 0x75:
+			case 0xD5:
 				Z_sub(args);
 				break;
 			case 0x16:
+			case 0x36:
+			case 0x56:
+			case 0x76:
+			case 0xD6:
 				Z_mul(args);
 				break;
 			case 0x17:
+			case 0x37:
+			case 0x57:
+			case 0x77:
+			case 0xD7:
 				Z_div(args);
 				break;
 			case 0x18:
+			case 0x38:
+			case 0x58:
+			case 0x78:
+			case 0xD8:
 				Z_mod(args);
 				break;
-			default:
-				halt(String.format("Illegal opcode number 2OP:0x%x", opCodeNr));
-				break;
-		}
-	}
-
-	private void callVarOp(int opCodeNr, int args[]) {
-		switch (opCodeNr) {
-			case 0x00:
+			// VAR, variable form
+			case 0xE0:
 				Z_call(args);
 				break;
-			case 0x01:
+			case 0xE1:
 				Z_storew(args);
 				break;
-			case 0x02:
+			case 0xE2:
 				Z_storeb(args);
 				break;
-			case 0x03:
+			case 0xE3:
 				Z_put_prop(args);
 				break;
-			case 0x04:
+			case 0xE4:
 				Z_sread(args);
 				break;
-			case 0x05:
+			case 0xE5:
 				Z_print_char(args);
 				break;
-			case 0x06:
+			case 0xE6:
 				Z_print_num(args);
 				break;
-			case 0x07:
+			case 0xE7:
 				Z_random(args);
 				break;
-			case 0x08:
+			case 0xE8:
 				Z_push(args);
 				break;
-			case 0x09:
+			case 0xE9:
 				Z_pull(args);
 				break;
-			case 0x0A:
+			case 0xEA:
 				Z_split_window(args);
 				break;
-			case 0x0B:
+			case 0xEB:
 				Z_set_window(args);
 				break;
-			case 0x13:
+			case 0xF3:
 				Z_output_stream(args);
 				break;
-			case 0x14:
+			case 0xF4:
 				Z_input_stream(args);
 				break;
-			case 0x15:
+			case 0xF5:
 				Z_sound_effect(args);
 				break;
 			default:
-				halt(String.format("Illegal opcode number VAR:0x%x", opCodeNr));
+				ZMachine.Instruction instr = this.zm.instruction;
+				halt("Illegal opcode number " + this.zm.getOpcodeName(instr.operandCount, instr.opCodeNr));
 				break;
 		}
 	}
 
-	private void interpretShortForm() {
-		int opCode = this.zm.consumeByte();
-
-		int opType = (opCode >> 4) & 0b11;
-		int opCodeNr = opCode & 0b1111;
-
-		if (opType == ZMachine.OPERAND_OMITTED) {
-			call0Op(opCodeNr);
+	private void interpretInstruction() {
+		ZMachine.Instruction instr = this.zm.getInstruction(this.zm.pc);
+		if (instr.compiledRoutine != null) {
+			executeCompiledRoutine(instr);
+		} else if (instr.routine != null) {
+			executeThreadedRoutine(instr);
+		} else if (instr.superinstruction != null) {
+			executeSuperinstruction(instr);
 		} else {
-			int opValue = this.zm.consumeOperand(opType);
-			call1Op(opCodeNr, opValue);
+			executeInstruction(instr);
 		}
 	}
 
-	private void interpretVarForm() {
-		int opCode = this.zm.consumeByte();
-
-		int opCodeNr = opCode & 0b1_1111;
-		int opTypes = this.zm.consumeByte();
-
-		int[] args = this.zm.consumeOperands(opTypes);
-		boolean is2OP = this.zm.isBitClear(opCode, 5);
-		if (is2OP) {
-			call2Op(opCodeNr, args);
-		} else {
-			callVarOp(opCodeNr, args);
+	private void executeInstruction(ZMachine.Instruction instr) {
+		this.zm.beginInstruction(instr);
+		execute(instr.opCode, this.zm.operands);
+		this.instructionCount++;
+		if (this.shadow != null) {
+			compareWithShadow();
 		}
 	}
 
-	private void interpretLongForm() {
-		int opCode = this.zm.consumeByte();
-
-		int opType1 = this.zm.isBitClear(opCode, 6) ? ZMachine.OPERAND_SMALL : ZMachine.OPERAND_VARIABLE;
-		int opType2 = this.zm.isBitClear(opCode, 5) ? ZMachine.OPERAND_SMALL : ZMachine.OPERAND_VARIABLE;
-		int opCodeNr = opCode & 0b1_1111;
+	private void executeSuperinstruction(ZMachine.Instruction instr) {
+		// executes the fused instructions as long as none of them branches away. The common ones
+		// run right here from their decoded operands, without the operand slots and the opcode
+		// switch, and a value loaded for the jz that follows bypasses the stack.
+
+		ZMachine zm = this.zm;
+		zm.superinstructionCounts[instr.superinstruction.id]++;
+		ZMachine.Instruction[] fusedInstrs = instr.fusedInstructions;
+		int i = 0;
+		while (i < fusedInstrs.length) {
+			ZMachine.Instruction fusedInstr = fusedInstrs[i];
+			if ((i > 0) && (zm.pc != fusedInstrs[i - 1].nextAddr)) {
+				break;
+			}
 
-		int opValue1 = this.zm.consumeOperand(opType1);
-		int opValue2 = this.zm.consumeOperand(opType2);
-		call2Op(opCodeNr, new int[] { opValue1, opValue2 });
+			zm.instruction = fusedInstr;
+			zm.pc = fusedInstr.operandsEndAddr;
+			if (fusedInstr.isTestedByNextJz && ((i + 1) < fusedInstrs.length)) {
+				int value = executeFusedLoad(fusedInstr);
+				zm.instruction = fusedInstrs[i + 1];
+				zm.branch(value == 0);
+				this.instructionCount += 2;
+				i += 2;
+				continue;
+			}
+			if (executeFusedInstruction(fusedInstr) == false) {
+				zm.beginInstruction(fusedInstr);
+				execute(fusedInstr.opCode, zm.operands);
+			}
+			this.instructionCount++;
+			i++;
+		}
+		if (this.shadow != null) {
+			compareWithShadow();
+		}
 	}
 
-	private void interpretInstruction() {
-		int opCode = this.zm.peekByte();
-
-		int form = (opCode >> 6) & 0b11;
-		switch (form) {
-			case 0b10:
-				interpretShortForm();
-				break;
-			case 0b11:
-				interpretVarForm();
-				break;
+	private static final int OPCODE_ID_JZ = (ZMachine.OPCOUNT_1OP << 5) | 0x00;
+	private static final int OPCODE_ID_JUMP = (ZMachine.OPCOUNT_1OP << 5) | 0x0C;
+	private static final int OPCODE_ID_JE = (ZMachine.OPCOUNT_2OP << 5) | 0x01;
+	private static final int OPCODE_ID_JL = (ZMachine.OPCOUNT_2OP << 5) | 0x02;
+	private static final int OPCODE_ID_JG = (ZMachine.OPCOUNT_2OP << 5) | 0x03;
+	private static final int OPCODE_ID_STORE = (ZMachine.OPCOUNT_2OP << 5) | 0x0D;
+	private static final int OPCODE_ID_LOADW = (ZMachine.OPCOUNT_2OP << 5) | 0x0F;
+	private static final int OPCODE_ID_LOADB = (ZMachine.OPCOUNT_2OP << 5) | 0x10;
+	private static final int OPCODE_ID_GET_PROP = (ZMachine.OPCOUNT_2OP << 5) | 0x11;
+
+	private boolean executeFusedInstruction(ZMachine.Instruction instr) { // returns false if left to execute()
+		ZMachine zm = this.zm;
+		switch ((instr.operandCount << 5) | instr.opCodeNr) {
+			case OPCODE_ID_JZ:
+				zm.branch(zm.getOperand(instr, 0) == 0);
+				return true;
+			case OPCODE_ID_JE:
+				int value = zm.getOperand(instr, 0);
+				boolean isBranch = false;
+				for (int i = 1; i < instr.numOperands; i++) {
+					isBranch |= zm.getOperand(instr, i) == value; // evaluates all operands, which may pop the stack
+				}
+				zm.branch(isBranch);
+				return true;
+			case OPCODE_ID_JL:
+				zm.branch(zm.toInt32(zm.getOperand(instr, 0)) < zm.toInt32(zm.getOperand(instr, 1)));
+				return true;
+			case OPCODE_ID_JG:
+				zm.branch(zm.toInt32(zm.getOperand(instr, 0)) > zm.toInt32(zm.getOperand(instr, 1)));
+				return true;
+			case OPCODE_ID_JUMP:
+				zm.pc = (zm.pc + zm.toInt32(zm.getOperand(instr, 0))) - 2;
+				return true;
+			case OPCODE_ID_STORE:
+				int varNumber = zm.getOperand(instr, 0);
+				zm.setVariableValue(varNumber, zm.getOperand(instr, 1));
+				return true;
+			case OPCODE_ID_LOADW:
+			case OPCODE_ID_LOADB:
+			case OPCODE_ID_GET_PROP:
+				zm.store(executeFusedLoad(instr));
+				return true;
 			default:
-				interpretLongForm();
-				break;
+				return false;
 		}
 	}
 
-	private void run(ZMachine zm) {
-		if (zm.header.versionNumber != 3) {
-			System.out.println(ERROR_NOT_VERSION_3);
+	private int executeFusedLoad(ZMachine.Instruction instr) { // loadw, loadb or get_prop, returns the value to store
+		int operand1 = this.zm.getOperand(instr, 0);
+		int operand2 = this.zm.getOperand(instr, 1);
+		if (instr.opCodeNr == 0x0F) {
+			return loadw(operand1, operand2);
+		} else if (instr.opCodeNr == 0x10) {
+			return loadb(operand1, operand2);
+		}
+		return getProp(operand1, operand2);
+	}
+
+	private void executeCompiledRoutine(ZMachine.Instruction entryInstr) {
+		// runs the routine's JVM class until control leaves it, at least one instruction
+
+		int numInstructions = entryInstr.compiledRoutine.execute(this.compiledRoutineContext, entryInstr.addr);
+		this.instructionCount += numInstructions;
+		if (this.shadow != null) {
+			compareWithShadow();
+		}
+	}
+
+	private int executeForCompiledRoutine(int addr) {
+		// executes an instruction the compiled code leaves to its handler, returns the new pc, or -1
+		// if the instruction left the routine's stack frame. A call into a compiled routine runs right
+		// here, so that the compiled caller goes on by itself when the callee returns.
+
+		ZMachine.Instruction instr = this.zm.getInstruction(addr);
+		int frameIndex = this.zm.stack.stackFrameIndex;
+		this.zm.beginInstruction(instr);
+		execute(instr.opCode, this.zm.operands);
+		if ((this.zm.stack.stackFrameIndex != frameIndex) && (this.compiledCallDepth < MAX_COMPILED_CALL_DEPTH)) {
+			ZMachine.Instruction calleeInstr = this.zm.getInstruction(this.zm.pc);
+			if (calleeInstr.compiledRoutine != null) {
+				this.compiledCallDepth++;
+				int numInstructions = calleeInstr.compiledRoutine.execute(this.compiledRoutineContext, calleeInstr.addr);
+				this.compiledCallDepth--;
+				this.instructionCount += numInstructions; // after the callee, which may count nested calls itself
+			}
+		}
+		return (this.zm.stack.stackFrameIndex == frameIndex) ? this.zm.pc : -1;
+	}
+
+	private void executeThreadedRoutine(ZMachine.Instruction entryInstr) {
+		// steps through the threaded code by index until control leaves the routine
+
+		ZMachine.Instruction[] code = entryInstr.routine.code;
+		int index = entryInstr.routineIndex;
+		while (this.zm.isRunning) {
+			ZMachine.Instruction instr = code[index];
+			this.zm.beginInstruction(instr);
+			execute(instr.opCode, this.zm.operands);
+			this.instructionCount++;
+			if (this.shadow != null) {
+				compareWithShadow();
+			}
+
+			if (this.zm.pc == instr.nextAddr) {
+				index++;
+			} else if (this.zm.pc == instr.branchTargetAddr) {
+				index = instr.branchIndex;
+			} else {
+				return;
+			}
+			if ((index < 0) || (index >= code.length) || (code[index] == null)) {
+				return;
+			}
+		}
+	}
+
+	private void compareWithShadow() {
+		// lets the shadow catch up instruction by instruction, then compares both machines
+
+		ZInterpreter shadow = this.shadow;
+		while (shadow.zm.isRunning && (shadow.instructionCount < this.instructionCount)) {
+			shadow.executeInstruction(shadow.zm.getInstruction(shadow.zm.pc));
+		}
+
+		String difference = this.zm.getStateDifference(shadow.zm);
+		if (difference != null) {
+			halt(String.format("compareWithShadow() - %s after %d instructions", difference, this.instructionCount));
+		}
+	}
+
+	private void run(ZMachine zm) {
+		if (zm.header.versionNumber != 3) {
+			this.terminal.print(ERROR_NOT_VERSION_3 + CR);
+			this.terminal.flush();
 			return;
 		}
 
 		this.zm = zm;
-		while (zm.isRunning) {
+		long startAllocatedBytes = getAllocatedBytes();
+		runUntilInput();
+		long allocatedBytes = (startAllocatedBytes >= 0) ? (getAllocatedBytes() - startAllocatedBytes) : -1;
+
+		if (this.isShowStatistics) {
+			print(ZMachine.EOL + zm.getStatistics());
+			print(ZMachine.EOL + getStatistics(allocatedBytes));
+			flush();
+		}
+	}
+
+	private void runUntilInput() { // until the story ends, or pauses at an input instruction
+		while (this.zm.isRunning) {
 			interpretInstruction();
 		}
 	}
 
+	private void pauseAtInput() {
+		this.isWaitingForInput = true;
+		this.zm.isRunning = false; // leaves the interpreter loops, see isRunning()
+		checkForScoreUpdate();
+		flush();
+	}
+
+	// driving a story, for programs such as solvers that try many commands at each prompt
+	//
+	//	ZInterpreter interpreter = ZInterpreter.load(storyFilePath, terminal);
+	//	interpreter.start();                        // prints up to the first prompt
+	//	ZInterpreter branch = interpreter.fork();   // shares the memory pages until either writes one
+	//	branch.resume("open mailbox");              // prints up to the next prompt
+	//	interpreter.resume("go north");             // goes on unaffected by the branch
+
+	public static ZInterpreter load(Path storyFilePath, Terminal terminal) throws IOException {
+		Settings settings = new Settings();
+		ZMachine.StoryFile story = new ZMachine.StoryFile(loadStory(storyFilePath, false));
+		ZMachine zm = settings.createMachine(story);
+		ZInterpreter interpreter = settings.createInterpreter(story, zm, terminal);
+		interpreter.zm = zm;
+		interpreter.isPausingAtInput = true;
+		return interpreter;
+	}
+
+	public void start() { // runs the story up to its first input instruction
+		if (this.zm.header.versionNumber != 3) {
+			this.terminal.print(ERROR_NOT_VERSION_3 + CR);
+			this.terminal.flush();
+			this.zm.isRunning = false;
+			return;
+		}
+		runUntilInput();
+	}
+
+	public void resume(String input) { // passes an input line to the waiting input instruction and runs up to the next one
+		if (this.isWaitingForInput == false) {
+			throw new IllegalStateException("resume() - Story not waiting for input");
+		}
+
+		this.resumedInput = input;
+		int inputLen = readInput();
+		this.resumedInput = null;
+		if (isUndoCommand(inputLen)) {
+			undoTurn();
+			pauseAtInput(); // at the earlier input instruction now
+			return;
+		}
+
+		this.isWaitingForInput = false;
+		this.zm.isRunning = true;
+		storeInput(this.zm.operands, inputLen);
+		runUntilInput();
+	}
+
+	public ZInterpreter fork() { // returns an interpreter waiting at the same input instruction, printing to the same terminal
+		if (this.isWaitingForInput == false) {
+			throw new IllegalStateException("fork() - Story not waiting for input");
+		}
+
+		ZInterpreter fork = new ZInterpreter(this.terminal, this.isShowScoreUpdates, false);
+		fork.zm = this.zm.fork();
+		fork.zm.saveUndoState(); // so the fork can undo its first turn
+		fork.saveDirectory = this.saveDirectory;
+		fork.oldScore = this.oldScore;
+		fork.instructionCount = this.instructionCount;
+		fork.isPausingAtInput = true;
+		fork.isWaitingForInput = true;
+		return fork;
+	}
+
+	public boolean isRunning() { // returns false once the story has ended
+		return this.zm.isRunning || this.isWaitingForInput;
+	}
+
+	private String getStatistics(long allocatedBytes) { // allocatedBytes is -1 if unknown
+		StringBuffer result = new StringBuffer();
+		result.append(String.format("%-40s %8d", "Instructions executed", this.instructionCount) + ZMachine.EOL);
+		if (allocatedBytes >= 0) {
+			// includes the output text, the input lines and the undo states, but no operands
+			result.append(String.format("%-40s %8d", "Bytes allocated", allocatedBytes) + ZMachine.EOL);
+			result.append(String.format("%-40s %8.2f", "Bytes allocated per instruction", (double) allocatedBytes / Math.max(1, this.instructionCount)) + ZMachine.EOL);
+		}
+		return result.toString();
+	}
+
+	private static long getAllocatedBytes() { // returns -1 if the JVM does not count the bytes allocated by a thread
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+			if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+				return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
 	private void halt(String errorMessage) {
 		throw new RuntimeException("Z-Interpreter halted: " + errorMessage);
 	}
@@ -2026,7 +4787,32 @@ public class ZInterpreter {
 
 	private static final String HELP = "" + //
 			"Usage: java ZInterpreter [<options>] <story-file>" + CR + //
-			"Options: -showScoreUpdates | Prints the score whenever it changes.";
+			"Options: -showScoreUpdates | Prints the score whenever it changes." + CR + //
+			"         -compile          | Compiles frequently called routines into JVM classes." + CR + //
+			"         -showStatistics   | Prints interpreter statistics when the story ends." + CR + //
+			"         -threaded         | Turns each routine into threaded code on its first call." + CR + //
+			"         -differential     | Checks -threaded or -compile against the interpreter." + CR + //
+			"         -mmap             | Maps the story file into memory instead of reading it." + CR + //
+			"         -objectIndex      | Indexes previous siblings to remove objects in constant time." + CR + //
+			"         -strict           | Checks each access to a local variable against the routine's locals." + CR + //
+			"         -maxStack <n>     | Limits the stack to n entries (default 65536)." + CR + //
+			"         -memoryBudget <n> | Limits dynamic memory and stack to n bytes." + CR + //
+			"         -server <port>    | Hosts a session per connection on a local TCP port." + CR + //
+			"         -hibernate <s>    | Moves server sessions idle for s seconds to disk." + CR + //
+			"         -maxResident <n>  | Moves the least recently used server sessions to disk beyond n." + CR + //
+			"         -undo <n>         | Keeps n turns for the undo command (default 50, 0 with -server, 0 = off).";
+
+	private static final int COMPILE_THRESHOLD = 32;
+	private static final int MAX_COMPILED_CALL_DEPTH = 256; // deeper calls return to the interpreter loop, to spare the JVM stack
+	private static final int MAX_INPUT_LEN = 256; // initial size of the input buffers, the text buffer length is a byte
+
+	private static final String META_COMMAND_UNDO = "undo";
+
+	private static final String INFO_UNDONE = //
+			"[Previous turn undone.]";
+
+	private static final String INFO_NOTHING_TO_UNDO = //
+			"[No more turns to undo.]";
 
 	private static final String ERROR_NOT_VERSION_3 = //
 			"ERROR: ZInterpreter supports version 3 stories only.";
@@ -2034,21 +4820,1428 @@ public class ZInterpreter {
 	private static final String ERROR_FILE_NOT_FOUND = //
 			"ERROR: Story file \"%s\" not found.";
 
+	private static final String ERROR_TOO_MANY_SESSIONS = //
+			"ERROR: Too many sessions, please try again later.";
+
+	private static final String INFO_SERVER_STARTED = //
+			"Serving sessions on port %d of the local host, saving to \"%s\".";
+
+	private static final int MAX_SESSIONS = 10000;
+	private static final int SERVER_BACKLOG = 256;
+	private static final int SESSION_THREAD_STACK_SIZE = 256 * 1024; // the interpreter does not recurse
+	private static final String SERVER_SAVE_DIRECTORY = "saves";
+	private static final String SERVER_SPILL_DIRECTORY = "spill";
+	private static final Charset SERVER_CHARSET = StandardCharsets.ISO_8859_1;
+
+	private static int parseNumber(String str) { // returns -1 if not a number
+		try {
+			return Integer.parseInt(str);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static ZInterpreter createShadow(ZMachine.StoryFile storyFile, ZMachine zm) {
+		// the shadow interprets instruction by instruction, replays the input and discards its output
+
+		ZMachine shadowZm = new ZMachine(storyFile);
+		shadowZm.rngRandomState = zm.rngRandomState;
+		shadowZm.setStackLimits(zm.maxStackSize, zm.memoryBudget);
+		shadowZm.isStrict = zm.isStrict;
+		shadowZm.setUndoLevels(zm.maxUndoLevels);
+
+		Terminal discardingTerminal = new Terminal() {
+			@Override
+			public String readLine() {
+				return null; // input is replayed
+			}
+
+			@Override
+			public void print(String text) {
+				// discard
+			}
+
+			@Override
+			public void flush() {
+				// nothing to flush
+			}
+		};
+
+		ZInterpreter shadow = new ZInterpreter(discardingTerminal, false, false);
+		shadow.zm = shadowZm;
+		shadow.shadowInputs = new ArrayDeque<String>();
+		return shadow;
+	}
+
+	private static ByteBuffer loadStory(Path storyFilePath, boolean isMemoryMapped) throws IOException {
+		if (isMemoryMapped) {
+			// the mapping stays valid after closing the channel
+			try (FileChannel channel = FileChannel.open(storyFilePath, StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+		return ByteBuffer.wrap(Files.readAllBytes(storyFilePath));
+	}
+
+	private static class SaveState {
+		private int pc;
+		private int[] stack;
+		private int stackTopIndex;
+		private int stackFrameIndex;
+		private byte[] dynamicMemory;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	public interface CompiledRoutine {
+
+		// Implemented by the classes RoutineCompiler generates, one per Z-machine routine
+
+		int execute(CompiledRoutineContext context, int addr); // returns the number of instructions executed
+	}
+
+	public static final class CompiledRoutineContext {
+
+		// The machine as compiled routines see it. It is public only because their
+		// classes live in a class loader of their own, which cannot reach private classes.
+
+		private final ZInterpreter interpreter;
+
+		private CompiledRoutineContext(ZInterpreter interpreter) {
+			this.interpreter = interpreter;
+		}
+
+		public int getLocal(int localNumber) {
+			ZMachine zm = this.interpreter.zm;
+			return zm.stack.stack[zm.localsIndex + localNumber];
+		}
+
+		public void setLocal(int localNumber, int value) {
+			ZMachine zm = this.interpreter.zm;
+			zm.stack.stack[zm.localsIndex + localNumber] = value;
+		}
+
+		public int getGlobal(int varNumber) {
+			return this.interpreter.zm.getVariableValue(varNumber);
+		}
+
+		public void setGlobal(int varNumber, int value) {
+			this.interpreter.zm.setVariableValue(varNumber, value);
+		}
+
+		public int pop() {
+			return this.interpreter.zm.stack.pop();
+		}
+
+		public void push(int value) {
+			this.interpreter.zm.stack.push(value);
+		}
+
+		public int execute(int addr) { // returns the new pc, -1 if the routine is left
+			return this.interpreter.executeForCompiledRoutine(addr);
+		}
+
+		public void setPc(int addr) {
+			this.interpreter.zm.pc = addr;
+		}
+
+		public void ret(int value) {
+			this.interpreter.zm.zmreturn(value);
+		}
+
+		public int loadw(int arrayAddr, int wordIndex) {
+			return this.interpreter.loadw(arrayAddr, wordIndex);
+		}
+
+		public int loadb(int arrayAddr, int byteIndex) {
+			return this.interpreter.loadb(arrayAddr, byteIndex);
+		}
+
+		public void storew(int arrayAddr, int wordIndex, int value) {
+			this.interpreter.storew(arrayAddr, wordIndex, value);
+		}
+
+		public void storeb(int arrayAddr, int byteIndex, int value) {
+			this.interpreter.storeb(arrayAddr, byteIndex, value);
+		}
+
+		public int getParent(int objNumber) {
+			return this.interpreter.zm.getParentNumber(objNumber);
+		}
+
+		public int getSibling(int objNumber) {
+			return this.interpreter.zm.getSiblingNumber(objNumber);
+		}
+
+		public int getChild(int objNumber) {
+			return this.interpreter.zm.getChildNumber(objNumber);
+		}
+
+		public boolean testAttr(int objNumber, int bitNumber) {
+			return this.interpreter.testAttr(objNumber, bitNumber);
+		}
+
+		public int getProp(int objNumber, int propNumber) {
+			return this.interpreter.getProp(objNumber, propNumber);
+		}
+
+		public void enterAt(int addr) { // called for an address that is not an entry of the routine
+			this.interpreter.halt(String.format("enterAt() - Compiled routine entered at 0x%x", addr));
+		}
+	}
+
+	private static class RoutineClassLoader extends ClassLoader {
+
+		// Loads the classes of compiled routines, one loader per story
+
+		public RoutineClassLoader() {
+			super(ZInterpreter.class.getClassLoader());
+		}
+
+		public Class<?> defineClass(String className, byte[] classFile) {
+			return defineClass(className, classFile, 0, classFile.length);
+		}
+	}
+
+	private static class RoutineCompiler {
+
+		// Translates a Z-machine routine into a JVM class with one method, CompiledRoutine.execute()
+		//
+		//	Z-machine                             JVM
+		//	local variable n                      local variable SLOT_LOCAL_0 + n
+		//	stack, global variable                CompiledRoutineContext.pop(), getGlobal(), ...
+		//	branch, jump within the routine       if<cond>, goto
+		//	arithmetic, comparison, store, load   inline code
+		//	call, print, insert_obj, ...          CompiledRoutineContext.execute(), which runs the
+		//	                                      instruction's handler of the interpreter
+		//	save, restore, restart, quit, sread   return to the interpreter
+		//
+		//	execute() reads the locals from the stack frame, jumps to the instruction at its
+		//	entry address through a lookupswitch, and runs until control leaves the routine's
+		//	code: by a return, or an instruction left to the interpreter. Calls into compiled
+		//	routines run nested. Stores to locals write through to the frame, so that handlers
+		//	and the interpreter always find them there. The class file has version 49, which
+		//	the JVM verifies without stack maps.
+
+		private static final String CLASS_NAME_FORMAT = "de/lorenzwiest/zmachine/ZRoutine_%05x";
+		private static final String COMPILED_ROUTINE_CLASS = "de/lorenzwiest/zmachine/ZInterpreter$CompiledRoutine";
+		private static final String CONTEXT_CLASS = "de/lorenzwiest/zmachine/ZInterpreter$CompiledRoutineContext";
+		private static final String EXECUTE_DESCRIPTOR = "(L" + CONTEXT_CLASS + ";I)I";
+
+		private static final int SLOT_CONTEXT = 1; // slot 0 is this
+		private static final int SLOT_ADDR = 2;
+		private static final int SLOT_LOCAL_0 = 2; // local n is in slot SLOT_LOCAL_0 + n, n = 1..15
+		private static final int SLOT_COUNT = 18; // number of instructions executed
+		private static final int SLOT_TEMP_0 = 19; // up to 4 operands
+		private static final int SLOT_TEMP_VALUE = 23;
+		private static final int MAX_LOCALS = 24;
+		private static final int MAX_STACK = 8;
+		private static final int MAX_CODE_LEN = 32767; // branch offsets are 16-bit
+
+		private static final int OP_0OP = ZMachine.OPCOUNT_0OP << 5;
+		private static final int OP_1OP = ZMachine.OPCOUNT_1OP << 5;
+		private static final int OP_2OP = ZMachine.OPCOUNT_2OP << 5;
+		private static final int OP_VAR = ZMachine.OPCOUNT_VAR << 5;
+
+		// JVM opcodes
+		private static final int ICONST_0 = 0x03;
+		private static final int ICONST_1 = 0x04;
+		private static final int BIPUSH = 0x10;
+		private static final int SIPUSH = 0x11;
+		private static final int LDC_W = 0x13;
+		private static final int ILOAD = 0x15;
+		private static final int ALOAD_0 = 0x2A;
+		private static final int ISTORE = 0x36;
+		private static final int IADD = 0x60;
+		private static final int ISUB = 0x64;
+		private static final int IMUL = 0x68;
+		private static final int IAND = 0x7E;
+		private static final int IOR = 0x80;
+		private static final int IXOR = 0x82;
+		private static final int IINC = 0x84;
+		private static final int I2C = 0x92; // to an unsigned 16-bit value
+		private static final int I2S = 0x93; // to a signed 16-bit value
+		private static final int IFEQ = 0x99;
+		private static final int IFNE = 0x9A;
+		private static final int IF_ICMPEQ = 0x9F;
+		private static final int IF_ICMPNE = 0xA0;
+		private static final int IF_ICMPLT = 0xA1;
+		private static final int IF_ICMPGT = 0xA3;
+		private static final int GOTO = 0xA7;
+		private static final int LOOKUPSWITCH = 0xAB;
+		private static final int IRETURN = 0xAC;
+		private static final int RETURN = 0xB1;
+		private static final int INVOKEVIRTUAL = 0xB6;
+		private static final int INVOKESPECIAL = 0xB7;
+
+		private static final int ACC_PUBLIC = 0x0001;
+		private static final int ACC_FINAL = 0x0010;
+		private static final int ACC_SUPER = 0x0020;
+
+		private static class Bytes {
+
+			// Growable byte array, big-endian like class files
+
+			private byte[] bytes = new byte[1024];
+			private int size = 0;
+
+			public void u1(int value) {
+				if (this.size == this.bytes.length) {
+					this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+				}
+				this.bytes[this.size++] = (byte) value;
+			}
+
+			public void u2(int value) {
+				u1(value >> 8);
+				u1(value);
+			}
+
+			public void u4(int value) {
+				u2(value >> 16);
+				u2(value);
+			}
+
+			public void put(Bytes other) {
+				for (int i = 0; i < other.size; i++) {
+					u1(other.bytes[i]);
+				}
+			}
+
+			public void setU2(int pos, int value) {
+				this.bytes[pos] = (byte) (value >> 8);
+				this.bytes[pos + 1] = (byte) value;
+			}
+
+			public void setU4(int pos, int value) {
+				setU2(pos, value >> 16);
+				setU2(pos + 2, value);
+			}
+
+			public byte[] toByteArray() {
+				return Arrays.copyOf(this.bytes, this.size);
+			}
+		}
+
+		private final ZMachine zm;
+		private final ZMachine.Routine routine;
+		private final List<ZMachine.Instruction> instrs;
+		private final int[] instrLabels; // label of each instruction
+
+		private final Bytes constants = new Bytes();
+		private final Map<String, Integer> constantIndices = new HashMap<String, Integer>();
+		private int numConstants = 1; // constant 0 is unused
+
+		private final Bytes code = new Bytes();
+		private int[] labelPositions = new int[64];
+		private int numLabels = 0;
+		private final List<int[]> jumps = new ArrayList<int[]>(); // { opcode position, offset position, offset size, label }
+		private final Map<Integer, Integer> exitLabels = new HashMap<Integer, Integer>(); // by address to continue at
+		private final int[] returnLabels = { -1, -1 }; // of branches returning false or true
+
+		private RoutineCompiler(ZMachine zm, ZMachine.Routine routine, List<ZMachine.Instruction> instrs) {
+			this.zm = zm;
+			this.routine = routine;
+			this.instrs = instrs;
+			this.instrLabels = new int[instrs.size()];
+			for (int i = 0; i < this.instrLabels.length; i++) {
+				this.instrLabels[i] = newLabel();
+			}
+		}
+
+		public static CompiledRoutine compile(ZMachine zm, ZMachine.Routine routine, List<ZMachine.Instruction> instrs, RoutineClassLoader classLoader) {
+			// returns null if the routine is not compilable
+
+			int[] entryAddrs = getEntryAddrs(zm, instrs);
+			if ((entryAddrs.length == 0) || (isLocalsInRange(routine, instrs) == false)) {
+				return null;
+			}
+
+			RoutineCompiler compiler = new RoutineCompiler(zm, routine, instrs);
+			String className = String.format(CLASS_NAME_FORMAT, routine.addr);
+			byte[] classFile = compiler.createClassFile(className, entryAddrs);
+			if (classFile == null) {
+				return null; // too long
+			}
+
+			try {
+				Class<?> routineClass = classLoader.defineClass(className.replace('/', '.'), classFile);
+				return (CompiledRoutine) routineClass.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				zm.halt(String.format("compile() - Routine at 0x%x not loadable: %s", routine.addr, e));
+				return null;
+			}
+		}
+
+		public static int[] getEntryAddrs(ZMachine zm, List<ZMachine.Instruction> instrs) {
+			// the first instruction, and each one after an instruction which may leave the compiled code
+			// and come back, such as a call or sread, unless left to the interpreter itself
+
+			int[] result = new int[instrs.size()];
+			int numEntries = 0;
+			for (int i = 0; i < instrs.size(); i++) {
+				ZMachine.Instruction instr = instrs.get(i);
+				boolean isEntry = (i == 0) || (isInlined(instrs.get(i - 1)) == false);
+				if (isEntry && (zm.isInterpretedOnly(instr) == false)) {
+					result[numEntries++] = instr.addr;
+				}
+			}
+			return Arrays.copyOf(result, numEntries);
+		}
+
+		private static boolean isLocalsInRange(ZMachine.Routine routine, List<ZMachine.Instruction> instrs) {
+			// the code accesses its locals as JVM locals, so it must not reach beyond them into the stack
+
+			for (ZMachine.Instruction instr : instrs) {
+				boolean isInRange = isLocalInRange(routine, instr.storeVarNumber);
+				for (int i = 0; i < instr.numOperands; i++) {
+					boolean isVariableNumber = (instr.operandTypes[i] == ZMachine.OPERAND_VARIABLE) || ((i == 0) && isIndirect(instr));
+					if (isVariableNumber) {
+						isInRange &= isLocalInRange(routine, instr.operandValues[i]);
+					}
+				}
+				if (isInRange == false) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean isLocalInRange(ZMachine.Routine routine, int varNumber) {
+			return (varNumber < 1) || (varNumber > 15) || (varNumber <= routine.numLocals);
+		}
+
+		private static int getOpcodeId(ZMachine.Instruction instr) {
+			return (instr.operandCount << 5) | instr.opCodeNr;
+		}
+
+		private static boolean isIndirect(ZMachine.Instruction instr) {
+			// the first operand names the variable to read or write
+
+			switch (getOpcodeId(instr)) {
+				case OP_1OP | 0x05: // inc
+				case OP_1OP | 0x06: // dec
+				case OP_1OP | 0x0E: // load
+				case OP_2OP | 0x04: // dec_chk
+				case OP_2OP | 0x05: // inc_chk
+				case OP_2OP | 0x0D: // store
+				case OP_VAR | 0x09: // pull
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		private static boolean isInlined(ZMachine.Instruction instr) {
+			if (isIndirect(instr) && (instr.operandTypes[0] == ZMachine.OPERAND_VARIABLE)) {
+				return false; // the variable is known at run time only
+			}
+
+			switch (getOpcodeId(instr)) {
+				case OP_0OP | 0x00: // rtrue
+				case OP_0OP | 0x01: // rfalse
+				case OP_0OP | 0x04: // nop
+				case OP_0OP | 0x08: // ret_popped
+				case OP_1OP | 0x00: // jz
+				case OP_1OP | 0x01: // get_sibling
+				case OP_1OP | 0x02: // get_child
+				case OP_1OP | 0x03: // get_parent
+				case OP_1OP | 0x05: // inc
+				case OP_1OP | 0x06: // dec
+				case OP_1OP | 0x0B: // ret
+				case OP_1OP | 0x0E: // load
+				case OP_1OP | 0x0F: // not
+					return true;
+				case OP_1OP | 0x0C: // jump
+					return instr.branchTargetAddr != -1; // to a constant address
+				case OP_2OP | 0x01: // je
+					return instr.numOperands >= 1;
+				case OP_2OP | 0x02: // jl
+				case OP_2OP | 0x03: // jg
+				case OP_2OP | 0x04: // dec_chk
+				case OP_2OP | 0x05: // inc_chk
+				case OP_2OP | 0x06: // jin
+				case OP_2OP | 0x07: // test
+				case OP_2OP | 0x08: // or
+				case OP_2OP | 0x09: // and
+				case OP_2OP | 0x0A: // test_attr
+				case OP_2OP | 0x0D: // store
+				case OP_2OP | 0x0F: // loadw
+				case OP_2OP | 0x10: // loadb
+				case OP_2OP | 0x11: // get_prop
+				case OP_2OP | 0x14: // add
+				case OP_2OP | 0x15: // sub
+				case OP_2OP | 0x16: // mul
+					return instr.numOperands == 2;
+				case OP_VAR | 0x01: // storew
+				case OP_VAR | 0x02: // storeb
+					return instr.numOperands == 3;
+				case OP_VAR | 0x08: // push
+				case OP_VAR | 0x09: // pull
+					return instr.numOperands == 1;
+				default:
+					return false;
+			}
+		}
+
+		// class file
+
+		private byte[] createClassFile(String className, int[] entryAddrs) { // returns null if the code is too long
+			compileCode(entryAddrs);
+			if (resolveJumps() == false) {
+				return null;
+			}
+
+			int thisClass = getClassConstant(className);
+			int superClass = getClassConstant("java/lang/Object");
+			int interfaceClass = getClassConstant(COMPILED_ROUTINE_CLASS);
+			int superConstructor = getMethodConstant("java/lang/Object", "<init>", "()V");
+			int constructorName = getUtf8Constant("<init>");
+			int constructorDescriptor = getUtf8Constant("()V");
+			int executeName = getUtf8Constant("execute");
+			int executeDescriptor = getUtf8Constant(EXECUTE_DESCRIPTOR);
+			int codeName = getUtf8Constant("Code");
+
+			Bytes classFile = new Bytes();
+			classFile.u4(0xCAFEBABE);
+			classFile.u2(0); // minor version
+			classFile.u2(49); // major version
+			classFile.u2(this.numConstants);
+			classFile.put(this.constants);
+			classFile.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			classFile.u2(thisClass);
+			classFile.u2(superClass);
+			classFile.u2(1); // interfaces
+			classFile.u2(interfaceClass);
+			classFile.u2(0); // fields
+			classFile.u2(2); // methods
+
+			classFile.u2(ACC_PUBLIC);
+			classFile.u2(constructorName);
+			classFile.u2(constructorDescriptor);
+			classFile.u2(1); // attributes
+			classFile.u2(codeName);
+			classFile.u4(12 + 5); // attribute length
+			classFile.u2(1); // max stack
+			classFile.u2(1); // max locals
+			classFile.u4(5); // code length
+			classFile.u1(ALOAD_0);
+			classFile.u1(INVOKESPECIAL);
+			classFile.u2(superConstructor);
+			classFile.u1(RETURN);
+			classFile.u2(0); // exception table
+			classFile.u2(0); // attributes
+
+			classFile.u2(ACC_PUBLIC);
+			classFile.u2(executeName);
+			classFile.u2(executeDescriptor);
+			classFile.u2(1); // attributes
+			classFile.u2(codeName);
+			classFile.u4(12 + this.code.size); // attribute length
+			classFile.u2(MAX_STACK);
+			classFile.u2(MAX_LOCALS);
+			classFile.u4(this.code.size);
+			classFile.put(this.code);
+			classFile.u2(0); // exception table
+			classFile.u2(0); // attributes
+
+			classFile.u2(0); // attributes
+			return classFile.toByteArray();
+		}
+
+		private int getConstant(String key) { // returns 0 if the constant is new
+			Integer index = this.constantIndices.get(key);
+			if (index != null) {
+				return index;
+			}
+			this.constantIndices.put(key, this.numConstants);
+			return 0;
+		}
+
+		private int getUtf8Constant(String str) { // ASCII only
+			int index = getConstant("Utf8 " + str);
+			if (index == 0) {
+				this.constants.u1(1);
+				this.constants.u2(str.length());
+				for (int i = 0; i < str.length(); i++) {
+					this.constants.u1(str.charAt(i));
+				}
+				index = this.numConstants++;
+			}
+			return index;
+		}
+
+		private int getIntegerConstant(int value) {
+			int index = getConstant("Integer " + value);
+			if (index == 0) {
+				this.constants.u1(3);
+				this.constants.u4(value);
+				index = this.numConstants++;
+			}
+			return index;
+		}
+
+		private int getClassConstant(String className) {
+			int nameIndex = getUtf8Constant(className);
+			int index = getConstant("Class " + className);
+			if (index == 0) {
+				this.constants.u1(7);
+				this.constants.u2(nameIndex);
+				index = this.numConstants++;
+			}
+			return index;
+		}
+
+		private int getMethodConstant(String className, String methodName, String descriptor) {
+			int classIndex = getClassConstant(className);
+			int nameIndex = getUtf8Constant(methodName);
+			int descriptorIndex = getUtf8Constant(descriptor);
+			int nameAndTypeIndex = getConstant("NameAndType " + methodName + descriptor);
+			if (nameAndTypeIndex == 0) {
+				this.constants.u1(12);
+				this.constants.u2(nameIndex);
+				this.constants.u2(descriptorIndex);
+				nameAndTypeIndex = this.numConstants++;
+			}
+			int index = getConstant("Method " + className + "." + methodName + descriptor);
+			if (index == 0) {
+				this.constants.u1(10);
+				this.constants.u2(classIndex);
+				this.constants.u2(nameAndTypeIndex);
+				index = this.numConstants++;
+			}
+			return index;
+		}
+
+		// labels and jumps
+
+		private int newLabel() {
+			if (this.numLabels == this.labelPositions.length) {
+				this.labelPositions = Arrays.copyOf(this.labelPositions, this.numLabels * 2);
+			}
+			this.labelPositions[this.numLabels] = -1;
+			return this.numLabels++;
+		}
+
+		private void placeLabel(int label) {
+			this.labelPositions[label] = this.code.size;
+		}
+
+		private void emitJump(int opcode, int label) {
+			int opcodePos = this.code.size;
+			this.code.u1(opcode);
+			this.jumps.add(new int[] { opcodePos, this.code.size, 2, label });
+			this.code.u2(0);
+		}
+
+		private void emitJumpOffset(int opcodePos, int label) { // 32-bit offset of a lookupswitch
+			this.jumps.add(new int[] { opcodePos, this.code.size, 4, label });
+			this.code.u4(0);
+		}
+
+		private boolean resolveJumps() { // returns false if the code is too long for 16-bit offsets
+			if (this.code.size > MAX_CODE_LEN) {
+				return false;
+			}
+			for (int[] jump : this.jumps) {
+				int offset = this.labelPositions[jump[3]] - jump[0];
+				if (jump[2] == 2) {
+					this.code.setU2(jump[1], offset);
+				} else {
+					this.code.setU4(jump[1], offset);
+				}
+			}
+			return true;
+		}
+
+		private int negate(int conditionalJumpOpcode) { // ifeq <-> ifne, if_icmplt <-> if_icmpge, ...
+			return ((conditionalJumpOpcode - IFEQ) ^ 1) + IFEQ;
+		}
+
+		// code
+
+		private void compileCode(int[] entryAddrs) {
+			for (int n = 1; n <= this.routine.numLocals; n++) {
+				emitContextCall(SLOT_CONTEXT, "getLocal", "(I)I", n);
+				emitStoreSlot(SLOT_LOCAL_0 + n);
+			}
+			this.code.u1(ICONST_0);
+			emitStoreSlot(SLOT_COUNT);
+
+			int unknownEntryLabel = newLabel();
+			emitLoadSlot(SLOT_ADDR);
+			int opcodePos = this.code.size;
+			this.code.u1(LOOKUPSWITCH);
+			while ((this.code.size % 4) != 0) {
+				this.code.u1(0); // padding
+			}
+			emitJumpOffset(opcodePos, unknownEntryLabel);
+			this.code.u4(entryAddrs.length);
+			for (int entryAddr : entryAddrs) { // in ascending order
+				this.code.u4(entryAddr);
+				emitJumpOffset(opcodePos, this.instrLabels[this.zm.findInstructionIndex(this.instrs, entryAddr)]);
+			}
+
+			placeLabel(unknownEntryLabel);
+			emitContext();
+			emitLoadSlot(SLOT_ADDR);
+			emitInvoke("enterAt", "(I)V");
+			this.code.u1(ICONST_0);
+			this.code.u1(IRETURN);
+
+			for (int i = 0; i < this.instrs.size(); i++) {
+				compileInstruction(i);
+			}
+
+			for (Map.Entry<Integer, Integer> exit : this.exitLabels.entrySet()) {
+				placeLabel(exit.getValue());
+				emitExit(exit.getKey());
+			}
+			for (int value = 0; value <= 1; value++) {
+				if (this.returnLabels[value] != -1) {
+					placeLabel(this.returnLabels[value]);
+					emitContext();
+					emitConstant(value);
+					emitReturnFromRoutine();
+				}
+			}
+		}
+
+		private void compileInstruction(int i) {
+			ZMachine.Instruction instr = this.instrs.get(i);
+			placeLabel(this.instrLabels[i]);
+			if (this.zm.isInterpretedOnly(instr)) {
+				emitExit(instr.addr); // not executed here, so not counted
+				return;
+			}
+
+			this.code.u1(IINC);
+			this.code.u1(SLOT_COUNT);
+			this.code.u1(1);
+			if (isInlined(instr)) {
+				compileInlined(i, instr);
+			} else {
+				compileHandlerCall(i, instr);
+			}
+		}
+
+		private void compileInlined(int i, ZMachine.Instruction instr) {
+			switch (getOpcodeId(instr)) {
+				case OP_0OP | 0x00: // rtrue
+				case OP_0OP | 0x01: // rfalse
+					emitContext();
+					emitConstant((instr.opCodeNr == 0x00) ? 1 : 0);
+					emitReturnFromRoutine();
+					return;
+				case OP_0OP | 0x04: // nop
+					break;
+				case OP_0OP | 0x08: // ret_popped
+					emitContext();
+					emitContextCall(SLOT_CONTEXT, "pop", "()I");
+					emitReturnFromRoutine();
+					return;
+				case OP_1OP | 0x00: // jz
+					emitOperand(instr, 0);
+					emitBranch(instr, IFEQ);
+					break;
+				case OP_1OP | 0x01: // get_sibling
+				case OP_1OP | 0x02: // get_child
+					emitContext();
+					emitOperand(instr, 0);
+					emitInvoke((instr.opCodeNr == 0x01) ? "getSibling" : "getChild", "(I)I");
+					emitStoreSlot(SLOT_TEMP_VALUE);
+					emitLoadSlot(SLOT_TEMP_VALUE);
+					emitStoreVariable(instr.storeVarNumber);
+					emitLoadSlot(SLOT_TEMP_VALUE);
+					emitBranch(instr, IFNE);
+					break;
+				case OP_1OP | 0x03: // get_parent
+					emitContext();
+					emitOperand(instr, 0);
+					emitInvoke("getParent", "(I)I");
+					emitStoreVariable(instr.storeVarNumber);
+					break;
+				case OP_1OP | 0x05: // inc
+				case OP_1OP | 0x06: // dec
+					emitIncrement(instr.operandValues[0], (instr.opCodeNr == 0x05) ? IADD : ISUB);
+					break;
+				case OP_1OP | 0x0B: // ret
+					emitContext();
+					emitOperand(instr, 0);
+					emitReturnFromRoutine();
+					return;
+				case OP_1OP | 0x0C: // jump
+					emitJump(GOTO, getJumpLabel(instr.branchTargetAddr));
+					return;
+				case OP_1OP | 0x0E: // load
+					emitLoadVariable(instr.operandValues[0]);
+					emitStoreVariable(instr.storeVarNumber);
+					break;
+				case OP_1OP | 0x0F: // not
+					emitOperand(instr, 0);
+					emitConstant(-1);
+					this.code.u1(IXOR);
+					this.code.u1(I2C);
+					emitStoreVariable(instr.storeVarNumber);
+					break;
+				case OP_2OP | 0x01: // je
+					compileJe(instr);
+					break;
+				case OP_2OP | 0x02: // jl
+				case OP_2OP | 0x03: // jg
+					emitOperand(instr, 0);
+					this.code.u1(I2S);
+					emitOperand(instr, 1);
+					this.code.u1(I2S);
+					emitBranch(instr, (instr.opCodeNr == 0x02) ? IF_ICMPLT : IF_ICMPGT);
+					break;
+				case OP_2OP | 0x04: // dec_chk
+				case OP_2OP | 0x05: // inc_chk
+					emitOperand(instr, 1);
+					emitStoreSlot(SLOT_TEMP_0);
+					emitIncrement(instr.operandValues[0], (instr.opCodeNr == 0x05) ? IADD : ISUB);
+					emitLoadVariable(instr.operandValues[0]);
+					this.code.u1(I2S);
+					emitLoadSlot(SLOT_TEMP_0);
+					this.code.u1(I2S);
+					emitBranch(instr, (instr.opCodeNr == 0x05) ? IF_ICMPGT : IF_ICMPLT);
+					break;
+				case OP_2OP | 0x06: // jin
+					emitContext();
+					emitOperand(instr, 0);
+					emitInvoke("getParent", "(I)I");
+					emitOperand(instr, 1);
+					emitBranch(instr, IF_ICMPEQ);
+					break;
+				case OP_2OP | 0x07: // test
+					emitOperand(instr, 0);
+					emitOperand(instr, 1);
+					emitStoreSlot(SLOT_TEMP_0);
+					emitLoadSlot(SLOT_TEMP_0);
+					this.code.u1(IAND);
+					emitLoadSlot(SLOT_TEMP_0);
+					emitBranch(instr, IF_ICMPEQ);
+					break;
+				case OP_2OP | 0x08: // or
+				case OP_2OP | 0x09: // and
+				case OP_2OP | 0x14: // add
+				case OP_2OP | 0x15: // sub
+				case OP_2OP | 0x16: // mul
+					emitOperand(instr, 0);
+					emitOperand(instr, 1);
+					emitArithmetic(instr.opCodeNr);
+					emitStoreVariable(instr.storeVarNumber);
+					break;
+				case OP_2OP | 0x0A: // test_attr
+					emitContext();
+					emitOperand(instr, 0);
+					emitOperand(instr, 1);
+					emitInvoke("testAttr", "(II)Z");
+					emitBranch(instr, IFNE);
+					break;
+				case OP_2OP | 0x0D: // store
+					emitOperand(instr, 1);
+					emitStoreVariable(instr.operandValues[0]);
+					break;
+				case OP_2OP | 0x0F: // loadw
+				case OP_2OP | 0x10: // loadb
+				case OP_2OP | 0x11: // get_prop
+					emitContext();
+					emitOperand(instr, 0);
+					emitOperand(instr, 1);
+					emitInvoke((instr.opCodeNr == 0x0F) ? "loadw" : (instr.opCodeNr == 0x10) ? "loadb" : "getProp", "(II)I");
+					emitStoreVariable(instr.storeVarNumber);
+					break;
+				case OP_VAR | 0x01: // storew
+				case OP_VAR | 0x02: // storeb
+					emitContext();
+					emitOperand(instr, 0);
+					emitOperand(instr, 1);
+					emitOperand(instr, 2);
+					emitInvoke((instr.opCodeNr == 0x01) ? "storew" : "storeb", "(III)V");
+					break;
+				case OP_VAR | 0x08: // push
+					emitOperand(instr, 0);
+					emitStoreVariable(0);
+					break;
+				case OP_VAR | 0x09: // pull
+					emitContextCall(SLOT_CONTEXT, "pop", "()I");
+					emitStoreVariable(instr.operandValues[0]);
+					break;
+				default:
+					this.zm.halt(String.format("compileInlined() - Opcode %s not inlined", this.zm.getOpcodeName(instr.operandCount, instr.opCodeNr)));
+					break;
+			}
+			emitNext(i, instr);
+		}
+
+		private void compileJe(ZMachine.Instruction instr) {
+			if (instr.numOperands == 2) {
+				emitOperand(instr, 0);
+				emitOperand(instr, 1);
+				emitBranch(instr, IF_ICMPEQ);
+				return;
+			}
+
+			// the operands are evaluated first, as each of them may pop the stack
+			for (int i = 0; i < instr.numOperands; i++) {
+				emitOperand(instr, i);
+				emitStoreSlot(SLOT_TEMP_0 + i);
+			}
+			int branchLabel = getBranchLabel(instr);
+			int noBranchLabel = newLabel();
+			for (int i = 1; i < instr.numOperands; i++) {
+				emitLoadSlot(SLOT_TEMP_0);
+				emitLoadSlot(SLOT_TEMP_0 + i);
+				emitJump(IF_ICMPEQ, instr.isBranchOnTrue ? branchLabel : noBranchLabel);
+			}
+			if (instr.isBranchOnTrue == false) {
+				emitJump(GOTO, branchLabel);
+			}
+			placeLabel(noBranchLabel);
+		}
+
+		private void emitArithmetic(int opCodeNr) {
+			switch (opCodeNr) {
+				case 0x08: // or
+					this.code.u1(IOR);
+					break;
+				case 0x09: // and
+					this.code.u1(IAND);
+					break;
+				case 0x14: // add
+					this.code.u1(IADD);
+					this.code.u1(I2C);
+					break;
+				case 0x15: // sub
+					this.code.u1(ISUB);
+					this.code.u1(I2C);
+					break;
+				default: // mul, the low 16 bits of the product do not depend on the signs
+					this.code.u1(IMUL);
+					this.code.u1(I2C);
+					break;
+			}
+		}
+
+		private void emitIncrement(int varNumber, int addOrSubOpcode) {
+			emitLoadVariable(varNumber);
+			this.code.u1(ICONST_1);
+			this.code.u1(addOrSubOpcode);
+			this.code.u1(I2C);
+			emitStoreVariable(varNumber);
+		}
+
+		private void compileHandlerCall(int i, ZMachine.Instruction instr) {
+			// the interpreter runs the instruction, then the code continues wherever the pc points to
+
+			emitContextCall(SLOT_CONTEXT, "execute", "(I)I", instr.addr);
+			emitStoreSlot(SLOT_TEMP_VALUE);
+
+			int notNextLabel = newLabel();
+			emitLoadSlot(SLOT_TEMP_VALUE);
+			emitConstant(instr.nextAddr);
+			emitJump(IF_ICMPNE, notNextLabel);
+			emitReload(instr);
+			if ((i + 1) < this.instrs.size()) {
+				emitJump(GOTO, this.instrLabels[i + 1]);
+			} else {
+				emitReturn();
+			}
+
+			placeLabel(notNextLabel);
+			int targetIndex = (instr.branchTargetAddr != -1) ? this.zm.findInstructionIndex(this.instrs, instr.branchTargetAddr) : -1;
+			if (targetIndex != -1) {
+				int notTargetLabel = newLabel();
+				emitLoadSlot(SLOT_TEMP_VALUE);
+				emitConstant(instr.branchTargetAddr);
+				emitJump(IF_ICMPNE, notTargetLabel);
+				emitReload(instr);
+				emitJump(GOTO, this.instrLabels[targetIndex]);
+				placeLabel(notTargetLabel);
+			}
+			emitReturn(); // returned, or called a routine which is still running
+		}
+
+		private void emitReload(ZMachine.Instruction instr) { // reads the locals a handler may have written
+			for (int n = 1; n <= this.routine.numLocals; n++) {
+				if ((n == instr.storeVarNumber) || isIndirect(instr)) {
+					emitContextCall(SLOT_CONTEXT, "getLocal", "(I)I", n);
+					emitStoreSlot(SLOT_LOCAL_0 + n);
+				}
+			}
+		}
+
+		private void emitNext(int i, ZMachine.Instruction instr) {
+			if ((i + 1) == this.instrs.size()) {
+				emitExit(instr.nextAddr); // falls out of the decoded code
+			}
+			// otherwise falls through to the next instruction
+		}
+
+		private void emitBranch(ZMachine.Instruction instr, int conditionalJumpOpcode) { // jumps if the condition holds on the operand stack
+			int opcode = instr.isBranchOnTrue ? conditionalJumpOpcode : negate(conditionalJumpOpcode);
+			emitJump(opcode, getBranchLabel(instr));
+		}
+
+		private int getBranchLabel(ZMachine.Instruction instr) {
+			if (instr.branchTargetAddr == -1) {
+				int value = instr.branchReturnValue;
+				if (this.returnLabels[value] == -1) {
+					this.returnLabels[value] = newLabel();
+				}
+				return this.returnLabels[value];
+			}
+			return getJumpLabel(instr.branchTargetAddr);
+		}
+
+		private int getJumpLabel(int addr) {
+			int index = this.zm.findInstructionIndex(this.instrs, addr);
+			if (index != -1) {
+				return this.instrLabels[index];
+			}
+			Integer label = this.exitLabels.get(addr);
+			if (label == null) {
+				label = newLabel();
+				this.exitLabels.put(addr, label);
+			}
+			return label;
+		}
+
+		private void emitExit(int addr) { // continues in the interpreter at addr
+			emitContextCall(SLOT_CONTEXT, "setPc", "(I)V", addr);
+			emitReturn();
+		}
+
+		private void emitReturnFromRoutine() { // context and return value on the operand stack
+			emitInvoke("ret", "(I)V");
+			emitReturn();
+		}
+
+		private void emitReturn() {
+			emitLoadSlot(SLOT_COUNT);
+			this.code.u1(IRETURN);
+		}
+
+		private void emitOperand(ZMachine.Instruction instr, int i) {
+			int value = instr.operandValues[i];
+			if (instr.operandTypes[i] == ZMachine.OPERAND_VARIABLE) {
+				emitLoadVariable(value);
+			} else {
+				emitConstant(value);
+			}
+		}
+
+		private void emitLoadVariable(int varNumber) {
+			if (varNumber == 0) {
+				emitContextCall(SLOT_CONTEXT, "pop", "()I");
+			} else if (varNumber <= 15) {
+				emitLoadSlot(SLOT_LOCAL_0 + varNumber);
+			} else {
+				emitContextCall(SLOT_CONTEXT, "getGlobal", "(I)I", varNumber);
+			}
+		}
+
+		private void emitStoreVariable(int varNumber) { // value on the operand stack
+			if ((varNumber >= 1) && (varNumber <= 15)) {
+				emitStoreSlot(SLOT_LOCAL_0 + varNumber);
+				emitContext(); // writes through to the stack frame
+				emitConstant(varNumber);
+				emitLoadSlot(SLOT_LOCAL_0 + varNumber);
+				emitInvoke("setLocal", "(II)V");
+				return;
+			}
+
+			emitStoreSlot(SLOT_TEMP_VALUE);
+			emitContext();
+			if (varNumber == 0) {
+				emitLoadSlot(SLOT_TEMP_VALUE);
+				emitInvoke("push", "(I)V");
+			} else {
+				emitConstant(varNumber);
+				emitLoadSlot(SLOT_TEMP_VALUE);
+				emitInvoke("setGlobal", "(II)V");
+			}
+		}
+
+		private void emitContextCall(int contextSlot, String methodName, String descriptor, int... args) {
+			emitLoadReference(contextSlot);
+			for (int arg : args) {
+				emitConstant(arg);
+			}
+			emitInvoke(methodName, descriptor);
+		}
+
+		private void emitContext() {
+			emitLoadReference(SLOT_CONTEXT);
+		}
+
+		private void emitInvoke(String methodName, String descriptor) {
+			this.code.u1(INVOKEVIRTUAL);
+			this.code.u2(getMethodConstant(CONTEXT_CLASS, methodName, descriptor));
+		}
+
+		private void emitConstant(int value) {
+			if ((value >= -1) && (value <= 5)) {
+				this.code.u1(ICONST_0 + value);
+			} else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+				this.code.u1(BIPUSH);
+				this.code.u1(value);
+			} else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+				this.code.u1(SIPUSH);
+				this.code.u2(value);
+			} else {
+				this.code.u1(LDC_W);
+				this.code.u2(getIntegerConstant(value));
+			}
+		}
+
+		private void emitLoadReference(int slot) {
+			this.code.u1(ALOAD_0 + slot);
+		}
+
+		private void emitLoadSlot(int slot) {
+			this.code.u1(ILOAD);
+			this.code.u1(slot);
+		}
+
+		private void emitStoreSlot(int slot) {
+			this.code.u1(ISTORE);
+			this.code.u1(slot);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+
+	private static class Settings {
+
+		// command-line options, applied to every session
+
+		private boolean isShowScoreUpdates = false;
+		private boolean isCompile = false;
+		private boolean isShowStatistics = false;
+		private boolean isThreaded = false;
+		private boolean isDifferential = false;
+		private boolean isObjectIndex = false;
+		private boolean isStrict = false;
+		private int maxStackSize = ZMachine.DEFAULT_MAX_STACK_SIZE;
+		private int memoryBudget = 0;
+		private int undoLevels = -1; // -1 = not given, DEFAULT_UNDO_LEVELS when playing, 0 when serving
+		private int hibernateAfterSeconds = 0; // server only, 0 = never
+		private int maxResidentSessions = MAX_SESSIONS;
+
+		public ZMachine createMachine(ZMachine.StoryFile story) {
+			ZMachine zm = new ZMachine(story);
+			zm.setStackLimits(this.maxStackSize, this.memoryBudget);
+			zm.isStrict = this.isStrict;
+			zm.setUndoLevels((this.undoLevels != -1) ? this.undoLevels : ZMachine.DEFAULT_UNDO_LEVELS);
+			if (this.isCompile) {
+				zm.compileThreshold = COMPILE_THRESHOLD;
+			}
+			if (this.isThreaded || (this.isDifferential && (this.isCompile == false))) {
+				zm.threadThreshold = 1;
+			}
+			if (this.isObjectIndex) {
+				zm.enableObjectIndex();
+			}
+			return zm;
+		}
+
+		public ZInterpreter createInterpreter(ZMachine.StoryFile story, ZMachine zm, Terminal terminal) {
+			ZInterpreter interpreter = new ZInterpreter(terminal, this.isShowScoreUpdates, this.isShowStatistics);
+			if (this.isDifferential) {
+				interpreter.shadow = createShadow(story, zm);
+			}
+			return interpreter;
+		}
+	}
+
+	private static class Session implements Terminal {
+
+		// Terminal of a hosted session, which hibernates the machine while waiting for input
+
+		private final int id;
+		private final ZMachine zm;
+		private final Terminal terminal;
+		private final File spillFile;
+		private volatile boolean isWaitingForInput;
+		private volatile boolean isHibernated;
+		private volatile long lastActivityTime;
+
+		public Session(int id, ZMachine zm, Terminal terminal, File spillDirectory) {
+			this.id = id;
+			this.zm = zm;
+			this.terminal = terminal;
+			this.spillFile = new File(spillDirectory, String.format("session-%d.bin", id));
+			this.isWaitingForInput = false;
+			this.isHibernated = false;
+			this.lastActivityTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public String readLine() {
+			synchronized (this) {
+				this.isWaitingForInput = true;
+				this.lastActivityTime = System.currentTimeMillis();
+			}
+
+			String line = this.terminal.readLine(); // parks the session's thread
+
+			synchronized (this) {
+				this.isWaitingForInput = false;
+				this.lastActivityTime = System.currentTimeMillis();
+				if (this.isHibernated) {
+					wakeUp();
+				}
+			}
+			return line;
+		}
+
+		@Override
+		public void print(String text) {
+			this.terminal.print(text);
+		}
+
+		@Override
+		public void flush() {
+			this.terminal.flush();
+		}
+
+		public synchronized boolean hibernate() { // returns true if the machine was written to disk
+			if ((this.isWaitingForInput == false) || this.isHibernated) {
+				return false;
+			}
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.spillFile)))) {
+				this.zm.writeState(out);
+			} catch (IOException e) {
+				this.spillFile.delete();
+				return false; // stays in memory
+			}
+			this.zm.releaseMemory();
+			this.isHibernated = true;
+			return true;
+		}
+
+		private void wakeUp() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.spillFile)))) {
+				this.zm.readState(in);
+			} catch (IOException e) {
+				throw new RuntimeException(String.format("Session %d could not be woken up: %s", this.id, e.getMessage()));
+			}
+			this.spillFile.delete();
+			this.isHibernated = false;
+		}
+
+		public synchronized void close() {
+			this.spillFile.delete();
+		}
+	}
+
+	private static class SessionManager {
+
+		// Hibernates sessions idle for too long, and the least recently used ones
+		// when there are too many sessions in memory or the heap runs low
+
+		private static final long CHECK_INTERVAL_MILLIS = 1000;
+		private static final double MAX_HEAP_USAGE = 0.9;
+
+		private final File spillDirectory;
+		private final long idleTimeoutMillis;
+		private final int maxResidentSessions;
+		private final Set<Session> sessions = new HashSet<Session>();
+		private int nextSessionId = 1;
+
+		public SessionManager(File spillDirectory, long idleTimeoutMillis, int maxResidentSessions) {
+			this.spillDirectory = spillDirectory;
+			this.idleTimeoutMillis = idleTimeoutMillis;
+			this.maxResidentSessions = maxResidentSessions;
+		}
+
+		public synchronized Session openSession(ZMachine zm, Terminal terminal) {
+			Session session = new Session(this.nextSessionId++, zm, terminal, this.spillDirectory);
+			this.sessions.add(session);
+			return session;
+		}
+
+		public synchronized void closeSession(Session session) {
+			this.sessions.remove(session);
+			session.close();
+		}
+
+		public void start() {
+			this.spillDirectory.mkdirs();
+			Thread thread = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(CHECK_INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					hibernateSessions();
+				}
+			}, "ZInterpreter session manager");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void hibernateSessions() {
+			List<Session> candidates = new ArrayList<Session>();
+			int numResident = 0;
+			synchronized (this) {
+				for (Session session : this.sessions) {
+					if (session.isHibernated == false) {
+						numResident++;
+						if (session.isWaitingForInput) {
+							candidates.add(session);
+						}
+					}
+				}
+			}
+			candidates.sort((s1, s2) -> Long.compare(s1.lastActivityTime, s2.lastActivityTime)); // least recently used first
+
+			// freed memory shows only after garbage collection, so hibernate a quarter of the candidates at most
+			int numToFree = isLowOnMemory() ? Math.max(1, candidates.size() / 4) : 0;
+
+			long now = System.currentTimeMillis();
+			for (Session session : candidates) {
+				boolean isIdle = (now - session.lastActivityTime) >= this.idleTimeoutMillis;
+				boolean isTooMany = numResident > this.maxResidentSessions;
+				if ((isIdle || isTooMany || (numToFree > 0)) == false) {
+					break; // the remaining sessions were active more recently
+				}
+				if (session.hibernate()) {
+					numResident--;
+					numToFree--;
+				}
+			}
+		}
+
+		private boolean isLowOnMemory() {
+			Runtime runtime = Runtime.getRuntime();
+			long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+			return usedMemory > (runtime.maxMemory() * MAX_HEAP_USAGE);
+		}
+	}
+
+	private static void serve(ZMachine.StoryFile story, Settings settings, int port) throws IOException {
+		// one thread per session, parked in getInput() while the player is idle
+
+		if (settings.undoLevels == -1) {
+			settings.undoLevels = 0; // undo states of idle sessions would fill the heap, so only on request
+		}
+
+		AtomicInteger numSessions = new AtomicInteger(0);
+		File saveDirectory = new File(SERVER_SAVE_DIRECTORY);
+		saveDirectory.mkdirs();
+
+		SessionManager sessionManager = null;
+		if ((settings.hibernateAfterSeconds > 0) || (settings.maxResidentSessions < MAX_SESSIONS)) {
+			long idleTimeoutMillis = (settings.hibernateAfterSeconds > 0) ? (settings.hibernateAfterSeconds * 1000L) : Long.MAX_VALUE;
+			sessionManager = new SessionManager(new File(SERVER_SPILL_DIRECTORY), idleTimeoutMillis, settings.maxResidentSessions);
+			sessionManager.start();
+		}
+		SessionManager manager = sessionManager;
+
+		try (ServerSocket serverSocket = new ServerSocket(port, SERVER_BACKLOG, InetAddress.getLoopbackAddress())) {
+			System.out.println(String.format(INFO_SERVER_STARTED, port, saveDirectory.getAbsolutePath()));
+			while (true) {
+				Socket socket = serverSocket.accept();
+				if (numSessions.incrementAndGet() > MAX_SESSIONS) {
+					numSessions.decrementAndGet();
+					try (Socket rejectedSocket = socket) {
+						rejectedSocket.getOutputStream().write((ERROR_TOO_MANY_SESSIONS + CR).getBytes(SERVER_CHARSET));
+					} catch (IOException e) {
+						// ignore
+					}
+					continue;
+				}
+
+				Runnable session = () -> {
+					try (Socket sessionSocket = socket) {
+						PrintStream out = new PrintStream(sessionSocket.getOutputStream(), false, SERVER_CHARSET.name());
+						Terminal terminal = new StreamTerminal(sessionSocket.getInputStream(), out, SERVER_CHARSET);
+						ZMachine zm = settings.createMachine(story);
+						Session hibernatingSession = (manager != null) ? manager.openSession(zm, terminal) : null;
+						if (hibernatingSession != null) {
+							terminal = hibernatingSession;
+						}
+						ZInterpreter interpreter = settings.createInterpreter(story, zm, terminal);
+						interpreter.saveDirectory = saveDirectory;
+						try {
+							interpreter.run(zm);
+						} catch (RuntimeException e) { // a halted story ends its session only
+							out.print(CR + e.getMessage() + CR);
+							out.flush();
+						} finally {
+							if (hibernatingSession != null) {
+								manager.closeSession(hibernatingSession);
+							}
+						}
+					} catch (IOException e) {
+						// connection lost
+					} finally {
+						numSessions.decrementAndGet();
+					}
+				};
+				Thread thread = new Thread(null, session, "ZInterpreter session " + socket.getPort(), SESSION_THREAD_STACK_SIZE);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
 	public static void main(String[] args) {
 		System.out.println(BANNER);
 
-		boolean isShowScoreUpdates = false;
-		String storyFilename = null;
-		boolean isArgsOk = false;
-
-		if (args.length == 1) {
-			storyFilename = args[0];
-			isArgsOk = true;
-		} else if (args.length == 2) {
-			if (args[0].equals("-showScoreUpdates")) {
-				isShowScoreUpdates = true;
-				storyFilename = args[1];
-				isArgsOk = true;
+		Settings settings = new Settings();
+		boolean isMemoryMapped = false;
+		int serverPort = -1;
+		boolean isArgsOk = args.length >= 1;
+
+		for (int i = 0; i < (args.length - 1); i++) {
+			if (args[i].equals("-showScoreUpdates")) {
+				settings.isShowScoreUpdates = true;
+			} else if (args[i].equals("-compile")) {
+				settings.isCompile = true;
+			} else if (args[i].equals("-showStatistics")) {
+				settings.isShowStatistics = true;
+			} else if (args[i].equals("-threaded")) {
+				settings.isThreaded = true;
+			} else if (args[i].equals("-differential")) {
+				settings.isDifferential = true;
+			} else if (args[i].equals("-mmap")) {
+				isMemoryMapped = true;
+			} else if (args[i].equals("-objectIndex")) {
+				settings.isObjectIndex = true;
+			} else if (args[i].equals("-strict")) {
+				settings.isStrict = true;
+			} else if (args[i].equals("-maxStack") && (i < (args.length - 2))) {
+				i++;
+				settings.maxStackSize = parseNumber(args[i]);
+				isArgsOk &= settings.maxStackSize > 0;
+			} else if (args[i].equals("-memoryBudget") && (i < (args.length - 2))) {
+				i++;
+				settings.memoryBudget = parseNumber(args[i]);
+				isArgsOk &= settings.memoryBudget > 0;
+			} else if (args[i].equals("-undo") && (i < (args.length - 2))) {
+				i++;
+				settings.undoLevels = parseNumber(args[i]);
+				isArgsOk &= settings.undoLevels >= 0;
+			} else if (args[i].equals("-hibernate") && (i < (args.length - 2))) {
+				i++;
+				settings.hibernateAfterSeconds = parseNumber(args[i]);
+				isArgsOk &= settings.hibernateAfterSeconds > 0;
+			} else if (args[i].equals("-maxResident") && (i < (args.length - 2))) {
+				i++;
+				settings.maxResidentSessions = parseNumber(args[i]);
+				isArgsOk &= settings.maxResidentSessions > 0;
+			} else if (args[i].equals("-server") && (i < (args.length - 2))) {
+				i++;
+				serverPort = parseNumber(args[i]);
+				isArgsOk &= (serverPort > 0) && (serverPort <= 0xFFFF);
+			} else {
+				isArgsOk = false;
 			}
 		}
 		if (isArgsOk == false) {
@@ -2056,6 +6249,8 @@ public class ZInterpreter {
 			return;
 		}
 
+		String storyFilename = args[args.length - 1];
+
 		File storyFile = new File(storyFilename);
 		if (storyFile.exists() == false) {
 			System.out.println(String.format(ERROR_FILE_NOT_FOUND, storyFilename));
@@ -2064,9 +6259,15 @@ public class ZInterpreter {
 
 		try {
 			Path storyFilePath = storyFile.toPath();
-			byte[] story = Files.readAllBytes(storyFilePath);
-			ZMachine zm = new ZMachine(story);
-			new ZInterpreter(storyFilePath, isShowScoreUpdates).run(zm);
+			ZMachine.StoryFile story = new ZMachine.StoryFile(loadStory(storyFilePath, isMemoryMapped));
+			if (serverPort != -1) {
+				serve(story, settings, serverPort);
+				return;
+			}
+
+			ZMachine zm = settings.createMachine(story);
+			Terminal terminal = new StreamTerminal(System.in, System.out, Charset.defaultCharset());
+			settings.createInterpreter(story, zm, terminal).run(zm);
 		} catch (IOException e) {
 			// ignore
 		}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class AbbreviationBenchmark {
+
+	// Runs a tiny story that prints many different strings made mostly of abbreviations,
+	// as the text of Infocom stories is, each string once, so every string is decoded
+	// rather than taken from the string cache. It shows what decoding abbreviations costs,
+	// which a transcript of Adventure does not, as Adventure uses none. It goes through
+	// main() only, so the same benchmark runs against any revision of ZInterpreter on the
+	// class path:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.AbbreviationBenchmark [<options>]
+
+	private static final int NUM_WARMUP_RUNS = 50;
+	private static final int NUM_RUNS = 200;
+	private static final int NUM_STRINGS = 2000;
+	private static final int NUM_STRING_ABBREVIATIONS = 12; // abbreviations per string
+	private static final int NUM_ABBREVIATIONS = 96;
+	private static final int MIN_ABBREVIATION_LETTERS = 3;
+	private static final int MAX_ABBREVIATION_LETTERS = 9;
+
+	private static final int ZCHAR_SPACE = 0;
+	private static final int ZCHAR_A = 6;
+
+	public static void main(String[] args) throws Exception {
+		File storyFile = createStory().write();
+		try {
+			String[] interpreterArgs = Arrays.copyOf(args, args.length + 1);
+			interpreterArgs[args.length] = storyFile.getPath();
+
+			InputStream in = System.in;
+			PrintStream out = System.out;
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			long[] runNanos = new long[NUM_RUNS];
+			try {
+				for (int i = 0; i < (NUM_WARMUP_RUNS + NUM_RUNS); i++) {
+					output.reset();
+					System.setIn(new ByteArrayInputStream(new byte[0]));
+					System.setOut(new PrintStream(output));
+
+					long startNanos = System.nanoTime();
+					ZInterpreter.main(interpreterArgs);
+					long endNanos = System.nanoTime();
+
+					if (i >= NUM_WARMUP_RUNS) {
+						runNanos[i - NUM_WARMUP_RUNS] = endNanos - startNanos;
+					}
+				}
+			} finally {
+				System.setIn(in);
+				System.setOut(out);
+			}
+
+			Arrays.sort(runNanos);
+			System.out.println(String.format("%d runs, median %.2f ms, fastest %.2f ms, %d bytes of output per run", //
+					NUM_RUNS, runNanos[NUM_RUNS / 2] / 1e6, runNanos[0] / 1e6, output.size()));
+		} finally {
+			storyFile.delete();
+		}
+	}
+
+	private static TestStory createStory() {
+		TestStory story = new TestStory();
+		Random random = new Random(1); // the same story every time
+
+		// main:  loadw strings g0 -> sp
+		//        print_paddr sp
+		//        new_line
+		//        inc_chk g0 NUM_STRINGS - 1 ?~main
+		//        quit
+
+		int mainAddr = story.getCodeEndAddress();
+		int loadwAddr = story.getCodeEndAddress();
+		story.code(0xCF, 0x2F, 0x00, 0x00, 0x10, 0x00); // table address filled in below
+		story.code(0xAD, 0x00);
+		story.code(0xBB);
+		story.code(0xC5, 0x4F, 0x10, hi(NUM_STRINGS - 1), lo(NUM_STRINGS - 1));
+		story.branch(false, mainAddr);
+		story.code(0xBA);
+
+		// strings: the packed address of each string
+
+		int stringTableAddr = story.getCodeEndAddress();
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			story.code(0x00, 0x00); // string address filled in below
+		}
+		story.putWord(loadwAddr + 2, stringTableAddr);
+
+		// abbreviations: a word of random letters and a space each
+
+		for (int i = 0; i < NUM_ABBREVIATIONS; i++) {
+			int[] zChars = new int[MIN_ABBREVIATION_LETTERS + random.nextInt((MAX_ABBREVIATION_LETTERS - MIN_ABBREVIATION_LETTERS) + 1) + 1];
+			for (int j = 0; j < (zChars.length - 1); j++) {
+				zChars[j] = ZCHAR_A + random.nextInt(26);
+			}
+			zChars[zChars.length - 1] = ZCHAR_SPACE;
+			story.putWord(TestStory.ABBREVIATION_TABLE_ADDR + (i * 2), story.string(zChars)); // word address, the same as packed in version 3
+		}
+
+		// strings: random abbreviations, every fourth followed by a letter
+		//
+		//   z-chars  1..3  0..31      6..31
+		//            +-----------+    +--------+
+		//            abbreviation     letter
+
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			int[] zChars = new int[(NUM_STRING_ABBREVIATIONS * 2) + (NUM_STRING_ABBREVIATIONS / 4)];
+			int numZChars = 0;
+			for (int j = 0; j < NUM_STRING_ABBREVIATIONS; j++) {
+				int abbreviation = random.nextInt(NUM_ABBREVIATIONS);
+				zChars[numZChars++] = (abbreviation / 32) + 1;
+				zChars[numZChars++] = abbreviation % 32;
+				if ((j % 4) == 3) {
+					zChars[numZChars++] = ZCHAR_A + random.nextInt(26);
+				}
+			}
+			story.putWord(stringTableAddr + (i * 2), story.string(zChars));
+		}
+		return story;
+	}
+
+	private static int hi(int value) {
+		return TestStory.hi(value);
+	}
+
+	private static int lo(int value) {
+		return TestStory.lo(value);
+	}
+}
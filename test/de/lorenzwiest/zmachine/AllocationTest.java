@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+public class AllocationTest {
+
+	// Runs a tiny story whose turns either do nothing or run a loop of 100 iterations
+	// through arithmetic, table, property, attribute, object tree, stack and call
+	// instructions, and checks that the loop allocates no bytes in steady state. Both
+	// kinds of turns read the same input and print nothing, so the difference between
+	// them is the loop alone:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.AllocationTest
+
+	private static final int NUM_WARMUP_TURNS = 5000;
+	private static final int NUM_TURNS = 1000;
+	private static final int NUM_LOOP_ITERATIONS = 100;
+	private static final int NUM_LOOP_INSTRUCTIONS = 38; // per iteration, including the call
+
+	private static final int TABLE_ADDR = 0x180;
+
+	private static class DiscardingTerminal implements ZInterpreter.Terminal {
+		@Override
+		public String readLine() {
+			return null; // input is passed to resume()
+		}
+
+		@Override
+		public void print(String text) {
+			// discard
+		}
+
+		@Override
+		public void flush() {
+			// nothing to flush
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		File storyFile = createStory().write();
+		try {
+			ZInterpreter interpreter = ZInterpreter.load(storyFile.toPath(), new DiscardingTerminal());
+			interpreter.start();
+			for (int i = 0; i < NUM_WARMUP_TURNS; i++) {
+				interpreter.resume("a");
+				interpreter.resume("b");
+			}
+
+			long idleTurnBytes = 0;
+			long loopTurnBytes = 0;
+			for (int i = 0; i < NUM_TURNS; i++) {
+				long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+				interpreter.resume("a");
+				long midBytes = threadBean.getThreadAllocatedBytes(threadId);
+				interpreter.resume("b");
+				long endBytes = threadBean.getThreadAllocatedBytes(threadId);
+				idleTurnBytes += midBytes - startBytes;
+				loopTurnBytes += endBytes - midBytes;
+			}
+
+			long numInstructions = (long) NUM_TURNS * NUM_LOOP_ITERATIONS * NUM_LOOP_INSTRUCTIONS;
+			long loopBytes = loopTurnBytes - idleTurnBytes;
+			if (loopBytes > 0) {
+				throw new RuntimeException(String.format("AllocationTest failed: %d bytes allocated in %d instructions, %.4f bytes per instruction", //
+						loopBytes, numInstructions, (double) loopBytes / numInstructions));
+			}
+			System.out.println(String.format("%d instructions, no bytes allocated", numInstructions));
+		} finally {
+			storyFile.delete();
+		}
+	}
+
+	private static TestStory createStory() {
+		TestStory story = new TestStory();
+		int propTableAddr = TestStory.getObjectAddress(4); // right after object 3
+		story.putObject(1, 0, 0, 2, propTableAddr);
+		propTableAddr = story.putPropertyTable(propTableAddr, 5, 1);
+		story.putObject(2, 1, 0, 0, propTableAddr);
+		propTableAddr = story.putPropertyTable(propTableAddr, 5, 2);
+		story.putObject(3, 0, 0, 0, propTableAddr);
+		story.putPropertyTable(propTableAddr, 5, 3);
+
+		// main:  sread text parse
+		//        loadb text 1 -> sp
+		//        je sp 'a' ?main
+		//        call work -> g0
+		//        jump main
+
+		int text = TestStory.TEXT_BUFFER_ADDR;
+		int parse = TestStory.PARSE_BUFFER_ADDR;
+		int mainAddr = story.getCodeEndAddress();
+		story.code(0xE4, 0x0F, hi(text), lo(text), hi(parse), lo(parse));
+		story.code(0xD0, 0x1F, hi(text), lo(text), 0x01, 0x00);
+		story.code(0x41, 0x00, 'a');
+		story.branch(true, mainAddr);
+		int callWorkAddr = story.getCodeEndAddress();
+		story.code(0xE0, 0x3F, 0x00, 0x00, 0x10); // routine address filled in below
+		story.jump(mainAddr);
+
+		// sub(l1): add l1 1 -> sp
+		//          ret_popped
+
+		int subRoutine = story.routine(1);
+		story.code(0x54, 0x01, 0x01, 0x00);
+		story.code(0xB8);
+
+		// work(l1, l2), 38 instructions per iteration, branches with ?next fall through
+
+		int workRoutine = story.routine(2);
+		int loopAddr = story.getCodeEndAddress();
+		story.code(0x54, 0x02, 0x03, 0x02); // add l2 3 -> l2
+		story.code(0x55, 0x02, 0x01, 0x02); // sub l2 1 -> l2
+		story.code(0x57, 0x02, 0x02, 0x00); // div l2 2 -> sp
+		story.code(0x48, 0x00, 0x01, 0x00); // or sp 1 -> sp
+		story.code(0x49, 0x00, 0xFF, 0x00); // and sp 0xFF -> sp
+		story.code(0xB9); // pop
+		story.code(0xCF, 0x1F, hi(TABLE_ADDR), lo(TABLE_ADDR), 0x00, 0x00); // loadw table 0 -> sp
+		story.code(0xE1, 0x1B, hi(TABLE_ADDR), lo(TABLE_ADDR), 0x01, 0x00); // storew table 1 sp
+		story.code(0xD0, 0x1F, hi(TABLE_ADDR), lo(TABLE_ADDR), 0x02, 0x00); // loadb table 2 -> sp
+		story.code(0xE2, 0x1B, hi(TABLE_ADDR), lo(TABLE_ADDR), 0x03, 0x00); // storeb table 3 sp
+		story.code(0x11, 0x02, 0x05, 0x00); // get_prop 2 5 -> sp
+		story.code(0xE3, 0x5B, 0x02, 0x05, 0x00); // put_prop 2 5 sp
+		story.code(0x0A, 0x02, 0x03, 0x42); // test_attr 2 3 ?~next
+		story.code(0x0B, 0x02, 0x03); // set_attr 2 3
+		story.code(0x0C, 0x02, 0x03); // clear_attr 2 3
+		story.code(0x06, 0x02, 0x01, 0xC2); // jin 2 1 ?next
+		story.code(0x93, 0x02, 0x00); // get_parent 2 -> sp
+		story.code(0xB9); // pop
+		story.code(0x92, 0x01, 0x00, 0xC2); // get_child 1 -> sp ?next
+		story.code(0xB9); // pop
+		story.code(0x91, 0x02, 0x00, 0xC2); // get_sibling 2 -> sp ?next
+		story.code(0xB9); // pop
+		story.code(0x0E, 0x03, 0x01); // insert_obj 3 1
+		story.code(0x99, 0x03); // remove_obj 3
+		story.code(0xE8, 0x7F, 0x05); // push 5
+		story.code(0xE9, 0x7F, 0x02); // pull l2
+		story.code(0xE0, 0x2F, hi(subRoutine), lo(subRoutine), 0x01, 0x00); // call sub l1 -> sp
+		story.code(0xB9); // pop
+		story.code(0x42, 0x01, 0x32, 0xC2); // jl l1 50 ?next
+		story.code(0xA0, 0x02, 0xC2); // jz l2 ?next
+		story.code(0x9E, 0x02, 0x00); // load l2 -> sp
+		story.code(0xB9); // pop
+		story.code(0x2D, 0x10, 0x01); // store g0 l1
+		story.code(0x95, 0x02); // inc l2
+		story.code(0x96, 0x02); // dec l2
+		story.code(0x05, 0x01, NUM_LOOP_ITERATIONS); // inc_chk l1 100 ?~loop
+		story.branch(false, loopAddr);
+		story.code(0xB0); // rtrue
+
+		story.putWord(callWorkAddr + 2, workRoutine);
+		return story;
+	}
+
+	private static int hi(int value) {
+		return TestStory.hi(value);
+	}
+
+	private static int lo(int value) {
+		return TestStory.lo(value);
+	}
+}
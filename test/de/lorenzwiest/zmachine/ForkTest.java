@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class ForkTest {
+
+	// Plays a story with a transcript of commands, then forks it at several prompts and
+	// checks that each fork, given the rest of the transcript, prints what the unforked
+	// play-through prints, while the story it was forked from goes on unaffected:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.ForkTest \
+	//        test/adventure-walkthrough.txt adventure/Adventure.dat
+
+	private static final int FORK_INTERVAL = 25; // commands between forks
+
+	private static class RecordingTerminal implements ZInterpreter.Terminal {
+		private final StringBuffer output = new StringBuffer();
+
+		@Override
+		public String readLine() {
+			return null; // input is passed to resume()
+		}
+
+		@Override
+		public void print(String text) {
+			this.output.append(text);
+		}
+
+		@Override
+		public void flush() {
+			// nothing to flush
+		}
+
+		public String takeOutput() {
+			String result = this.output.toString();
+			this.output.setLength(0);
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("Usage: java ForkTest <transcript> <story-file>");
+			return;
+		}
+
+		List<String> commands = Files.readAllLines(Paths.get(args[0]));
+		Path storyFilePath = Paths.get(args[1]);
+
+		// the unforked play-through, output after each command
+
+		RecordingTerminal terminal = new RecordingTerminal();
+		ZInterpreter interpreter = ZInterpreter.load(storyFilePath, terminal);
+		interpreter.start();
+		String expectedStartOutput = terminal.takeOutput();
+		String[] expectedOutputs = new String[commands.size()];
+		int numCommands = 0;
+		while (interpreter.isRunning() && (numCommands < commands.size())) {
+			interpreter.resume(commands.get(numCommands));
+			expectedOutputs[numCommands] = terminal.takeOutput();
+			numCommands++;
+		}
+		check(interpreter.isRunning() == false, "story still running after the transcript");
+
+		// the same play-through, forked every FORK_INTERVAL commands
+
+		int numForks = 0;
+		interpreter = ZInterpreter.load(storyFilePath, terminal);
+		interpreter.start();
+		check(terminal.takeOutput().equals(expectedStartOutput), "story printed different output when started again");
+		for (int i = 0; i < numCommands; i++) {
+			if ((i % FORK_INTERVAL) == 0) {
+				ZInterpreter fork = interpreter.fork();
+				if ((numForks % 2) == 1) { // a fork takes a detour and undoes it
+					fork.resume("inventory");
+					fork.resume("undo");
+					check(terminal.takeOutput().contains("[Previous turn undone.]"), String.format("fork at command %d cannot undo", i + 1));
+				}
+				for (int j = i; j < numCommands; j++) {
+					fork.resume(commands.get(j));
+					checkOutput(terminal.takeOutput(), expectedOutputs[j], String.format("fork at command %d", i + 1), j);
+				}
+				check(fork.isRunning() == false, String.format("fork at command %d still running", i + 1));
+				numForks++;
+			}
+
+			interpreter.resume(commands.get(i));
+			checkOutput(terminal.takeOutput(), expectedOutputs[i], "forked story", i);
+		}
+		check(interpreter.isRunning() == false, "forked story still running after the transcript");
+
+		System.out.println(String.format("%d commands, %d forks, all forks printed the same output", numCommands, numForks));
+	}
+
+	private static void checkOutput(String output, String expectedOutput, String name, int commandIndex) {
+		check(output.equals(expectedOutput), String.format("%s printed different output after command %d:%n%s%ninstead of:%n%s", //
+				name, commandIndex + 1, output, expectedOutput));
+	}
+
+	private static void check(boolean isOk, String errorMessage) {
+		if (isOk == false) {
+			throw new RuntimeException("ForkTest failed: " + errorMessage);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+public class LoopBenchmark {
+
+	// Runs a tiny story that calls a routine over and over, whose loop does nothing but
+	// the instruction sequences story code is full of: loads tested with jz, chains of
+	// je, runs of store, signed comparisons and a jump. Unlike a transcript, nearly all
+	// of the time goes into the instruction loop, so it shows what superinstructions and
+	// compiled routines gain there. It goes through main() only, so the same benchmark
+	// runs against any revision of ZInterpreter on the class path:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.LoopBenchmark [<options>]
+
+	private static final int NUM_WARMUP_RUNS = 5;
+	private static final int NUM_RUNS = 15;
+	private static final int NUM_CALLS = 2000;
+	private static final int NUM_LOOP_ITERATIONS = 200;
+	private static final int NUM_LOOP_COPIES = 4; // loop bodies per iteration, enough for them to become superinstructions
+	private static final int NUM_BODY_INSTRUCTIONS = 21;
+
+	private static final int TABLE_ADDR = 0x180;
+
+	public static void main(String[] args) throws Exception {
+		File storyFile = createStory().write();
+		try {
+			String[] interpreterArgs = Arrays.copyOf(args, args.length + 1);
+			interpreterArgs[args.length] = storyFile.getPath();
+
+			InputStream in = System.in;
+			PrintStream out = System.out;
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			long[] runNanos = new long[NUM_RUNS];
+			try {
+				for (int i = 0; i < (NUM_WARMUP_RUNS + NUM_RUNS); i++) {
+					output.reset();
+					System.setIn(new ByteArrayInputStream(new byte[0]));
+					System.setOut(new PrintStream(output));
+
+					long startNanos = System.nanoTime();
+					ZInterpreter.main(interpreterArgs);
+					long endNanos = System.nanoTime();
+
+					if (i >= NUM_WARMUP_RUNS) {
+						runNanos[i - NUM_WARMUP_RUNS] = endNanos - startNanos;
+					}
+				}
+			} finally {
+				System.setIn(in);
+				System.setOut(out);
+			}
+
+			Arrays.sort(runNanos);
+			long numInstructions = (long) NUM_CALLS * NUM_LOOP_ITERATIONS * ((NUM_LOOP_COPIES * NUM_BODY_INSTRUCTIONS) + 1);
+			System.out.println(String.format("%d runs, median %.2f ms, fastest %.2f ms, %.2f ns per instruction", //
+					NUM_RUNS, runNanos[NUM_RUNS / 2] / 1e6, runNanos[0] / 1e6, (double) runNanos[NUM_RUNS / 2] / numInstructions));
+		} finally {
+			storyFile.delete();
+		}
+	}
+
+	private static TestStory createStory() {
+		TestStory story = new TestStory();
+		int propTableAddr = TestStory.getObjectAddress(2); // right after object 1
+		story.putObject(1, 0, 0, 0, propTableAddr);
+		story.putPropertyTable(propTableAddr, 5, 1);
+		story.putWord(TABLE_ADDR, 1);
+
+		// main:  call work -> sp
+		//        pop
+		//        inc_chk g0 NUM_CALLS - 1 ?~main
+		//        quit
+
+		int mainAddr = story.getCodeEndAddress();
+		int callWorkAddr = story.getCodeEndAddress();
+		story.code(0xE0, 0x3F, 0x00, 0x00, 0x00); // routine address filled in below
+		story.code(0xB9);
+		story.code(0xC5, 0x4F, 0x10, hi(NUM_CALLS - 1), lo(NUM_CALLS - 1));
+		story.branch(false, mainAddr);
+		story.code(0xBA);
+
+		// work(l1, l2, l3, l4), the loop body NUM_LOOP_COPIES times per iteration, branches
+		// with ?rfalse are never taken, branches with ?next fall through either way
+
+		int workRoutine = story.routine(4);
+		story.code(0x0D, 0x03, 0x05); // store l3 5
+		int loopAddr = story.getCodeEndAddress();
+		for (int i = 0; i < NUM_LOOP_COPIES; i++) {
+			story.code(0xCF, 0x1F, hi(TABLE_ADDR), lo(TABLE_ADDR), 0x00, 0x00); // loadw table 0 -> sp
+			story.code(0xA0, 0x00, 0xC0); // jz sp ?rfalse
+			story.code(0x11, 0x01, 0x05, 0x00); // get_prop 1 5 -> sp
+			story.code(0xA0, 0x00, 0xC0); // jz sp ?rfalse
+			story.code(0x41, 0x02, 0x07, 0xC0); // je l2 7 ?rfalse
+			story.code(0x41, 0x02, 0x08, 0xC0); // je l2 8 ?rfalse
+			story.code(0x41, 0x02, 0x09, 0xC0); // je l2 9 ?rfalse
+			story.code(0xA0, 0x02, 0xC2); // jz l2 ?next
+			story.code(0xA0, 0x03, 0xC0); // jz l3 ?rfalse
+			story.code(0x2D, 0x04, 0x01); // store l4 l1
+			story.code(0x0D, 0x04, 0x03); // store l4 3
+			story.code(0x2D, 0x04, 0x03); // store l4 l3
+			story.code(0x42, 0x01, 0x00, 0xC0); // jl l1 0 ?rfalse
+			story.code(0x43, 0x01, NUM_LOOP_ITERATIONS, 0xC0); // jg l1 NUM_LOOP_ITERATIONS ?rfalse
+			story.code(0xA0, 0x03, 0xC0); // jz l3 ?rfalse
+			story.code(0x0D, 0x04, 0x01); // store l4 1
+			story.jump(story.getCodeEndAddress() + 3); // jump next
+			story.code(0x41, 0x04, 0x02, 0xC0); // je l4 2 ?rfalse
+			story.code(0x41, 0x04, 0x03, 0xC0); // je l4 3 ?rfalse
+			story.code(0xA0, 0x04, 0xC0); // jz l4 ?rfalse
+			story.code(0x0D, 0x02, 0x00); // store l2 0
+		}
+		story.code(0x05, 0x01, NUM_LOOP_ITERATIONS - 1); // inc_chk l1 NUM_LOOP_ITERATIONS - 1 ?~loop
+		story.branch(false, loopAddr);
+		story.code(0xB0); // rtrue
+
+		story.putWord(callWorkAddr + 2, workRoutine);
+		return story;
+	}
+
+	private static int hi(int value) {
+		return TestStory.hi(value);
+	}
+
+	private static int lo(int value) {
+		return TestStory.lo(value);
+	}
+}
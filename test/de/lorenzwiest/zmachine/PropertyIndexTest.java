@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.File;
+
+public class PropertyIndexTest {
+
+	// Runs a tiny story that rewrites the property table pointer of its only object,
+	// and checks that get_prop follows the new pointer, in the machine that rewrote it
+	// and not in machines forked off before:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.PropertyIndexTest
+
+	private static final int PROPERTY_TABLE_A_ADDR = TestStory.getObjectAddress(2); // right after object 1, property 5 = 11
+	private static final int PROPERTY_TABLE_B_ADDR = PROPERTY_TABLE_A_ADDR + 5; // property 5 = 22
+
+	private static class RecordingTerminal implements ZInterpreter.Terminal {
+		private final StringBuffer output = new StringBuffer();
+
+		@Override
+		public String readLine() {
+			return null; // input is passed to resume()
+		}
+
+		@Override
+		public void print(String text) {
+			this.output.append(text);
+		}
+
+		@Override
+		public void flush() {
+			// nothing to flush
+		}
+
+		public String takeOutput() {
+			String result = this.output.toString().trim();
+			this.output.setLength(0);
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File storyFile = createStory().write();
+		try {
+			RecordingTerminal terminal = new RecordingTerminal();
+
+			// the machine that rewrites the pointer sees the new properties, after it looked up the old ones
+
+			ZInterpreter interpreter = ZInterpreter.load(storyFile.toPath(), terminal);
+			interpreter.start();
+			ZInterpreter fork = interpreter.fork();
+			checkOutput(interpreter, "look", terminal, "11");
+			checkOutput(interpreter, "r", terminal, "22");
+			checkOutput(interpreter, "look", terminal, "22");
+			checkOutput(fork, "look", terminal, "11");
+
+			// a machine forked off before sees the old properties, after the rewriting machine looked up the new ones
+
+			interpreter = ZInterpreter.load(storyFile.toPath(), terminal);
+			interpreter.start();
+			fork = interpreter.fork();
+			checkOutput(interpreter, "r", terminal, "22");
+			checkOutput(fork, "look", terminal, "11");
+			checkOutput(interpreter.fork(), "look", terminal, "22");
+		} finally {
+			storyFile.delete();
+		}
+
+		System.out.println("get_prop followed every property table pointer");
+	}
+
+	private static TestStory createStory() {
+		TestStory story = new TestStory();
+		story.putObject(1, 0, 0, 0, PROPERTY_TABLE_A_ADDR);
+		story.putPropertyTable(PROPERTY_TABLE_A_ADDR, 5, 11);
+		story.putPropertyTable(PROPERTY_TABLE_B_ADDR, 5, 22);
+
+		// loop: sread text parse
+		//       loadb text 1 -> sp
+		//       je sp 'r' ?~skip
+		//       storew <pointer of object 1> 0 PROPERTY_TABLE_B_ADDR
+		// skip: get_prop 1 5 -> sp
+		//       print_num sp
+		//       new_line
+		//       jump loop
+
+		int text = TestStory.TEXT_BUFFER_ADDR;
+		int parse = TestStory.PARSE_BUFFER_ADDR;
+		int pointer = TestStory.getPropertyPointerAddress(1);
+		int loopAddr = story.getCodeEndAddress();
+		story.code(0xE4, 0x0F, hi(text), lo(text), hi(parse), lo(parse));
+		story.code(0xD0, 0x1F, hi(text), lo(text), 0x01, 0x00);
+		story.code(0x41, 0x00, 'r', 0x40 | 9); // skips the 7 bytes of storew
+		story.code(0xE1, 0x13, hi(pointer), lo(pointer), 0x00, hi(PROPERTY_TABLE_B_ADDR), lo(PROPERTY_TABLE_B_ADDR));
+		story.code(0x11, 0x01, 0x05, 0x00);
+		story.code(0xE6, 0xBF, 0x00);
+		story.code(0xBB);
+		story.jump(loopAddr);
+		return story;
+	}
+
+	private static int hi(int value) {
+		return TestStory.hi(value);
+	}
+
+	private static int lo(int value) {
+		return TestStory.lo(value);
+	}
+
+	private static void checkOutput(ZInterpreter interpreter, String input, RecordingTerminal terminal, String expectedOutput) {
+		interpreter.resume(input);
+		String output = terminal.takeOutput();
+		if (output.equals(expectedOutput) == false) {
+			throw new RuntimeException(String.format("PropertyIndexTest failed: \"%s\" printed %s instead of %s", input, output, expectedOutput));
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+public class RoutineCompilerTest {
+
+	// Runs a tiny story that calls four routines with arguments of both signs and prints
+	// what they return, once interpreted and once with -compile, and checks that both runs
+	// print the same and that all four routines were compiled. The routines exercise the
+	// instructions the compiler inlines with tricky semantics: inc_chk and dec_chk on the
+	// stack, jl and jg on negative values, test, and branches that return:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.RoutineCompilerTest
+
+	private static final int NUM_CALLS = 128; // per routine, well past the number of calls before it is compiled
+	private static final int NUM_ROUTINES = 4;
+
+	private static final String STATISTICS_START = "Superinstruction"; // the first line -showStatistics prints
+	private static final String COMPILED_ROUTINES = "Routines compiled to JVM classes";
+
+	public static void main(String[] args) throws Exception {
+		File storyFile = createStory().write();
+		try {
+			String interpretedOutput = runStory("-showStatistics", storyFile.getPath());
+			String compiledOutput = runStory("-compile", "-showStatistics", storyFile.getPath());
+
+			String interpretedResults = getResults(interpretedOutput);
+			String compiledResults = getResults(compiledOutput);
+			int numResults = interpretedResults.split("\n").length;
+			check(numResults == (NUM_CALLS * NUM_ROUTINES), String.format("story printed %d results instead of %d", numResults, NUM_CALLS * NUM_ROUTINES));
+			check(getStatistic(interpretedOutput, COMPILED_ROUTINES) == 0, "routines compiled without -compile");
+			check(getStatistic(compiledOutput, COMPILED_ROUTINES) == NUM_ROUTINES, "not all routines compiled with -compile");
+
+			String[] interpretedLines = interpretedResults.split("\n");
+			String[] compiledLines = compiledResults.split("\n");
+			for (int i = 0; i < interpretedLines.length; i++) {
+				check(interpretedLines[i].equals(compiledLines[i]), String.format("compiled routine %d returned %s instead of %s in call %d", //
+						(i % NUM_ROUTINES) + 1, compiledLines[i].trim(), interpretedLines[i].trim(), (i / NUM_ROUTINES) + 1));
+			}
+			System.out.println(String.format("%d calls of %d compiled routines returned what the interpreter returned", numResults, NUM_ROUTINES));
+		} finally {
+			storyFile.delete();
+		}
+	}
+
+	private static String runStory(String... interpreterArgs) {
+		InputStream in = System.in;
+		PrintStream out = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			System.setIn(new ByteArrayInputStream(new byte[0]));
+			System.setOut(new PrintStream(output));
+			ZInterpreter.main(interpreterArgs);
+		} finally {
+			System.setIn(in);
+			System.setOut(out);
+		}
+		return output.toString().replace("\r", "");
+	}
+
+	private static String getResults(String output) {
+		int statisticsPos = output.indexOf(STATISTICS_START);
+		check(statisticsPos != -1, "story printed no statistics");
+		String results = output.substring(0, statisticsPos);
+		return results.substring(results.indexOf('\n', results.lastIndexOf("(C)")) + 1).trim(); // after the banner
+	}
+
+	private static int getStatistic(String output, String name) {
+		int pos = output.indexOf(name);
+		check(pos != -1, String.format("story printed no statistic \"%s\"", name));
+		int endPos = output.indexOf('\n', pos);
+		return Integer.parseInt(output.substring(pos + name.length(), endPos).trim());
+	}
+
+	private static void check(boolean isOk, String errorMessage) {
+		if (isOk == false) {
+			throw new RuntimeException("RoutineCompilerTest failed: " + errorMessage);
+		}
+	}
+
+	private static TestStory createStory() {
+		TestStory story = new TestStory();
+
+		// main:  mul g0 37 -> g1
+		//        mod g1 64 -> g1
+		//        sub g1 32 -> g1                  g1 = -32..31, in no particular order
+		//        mul g1 1100 -> g2                g2 wraps around at both ends
+		//        call a g1 g2 -> sp
+		//        print_num sp
+		//        new_line
+		//        ...                              the same for b, c and d
+		//        inc_chk g0 NUM_CALLS - 1 ?~main
+		//        quit
+
+		int mainAddr = story.getCodeEndAddress();
+		story.code(0x56, 0x10, 0x25, 0x11);
+		story.code(0x58, 0x11, 0x40, 0x11);
+		story.code(0x55, 0x11, 0x20, 0x11);
+		story.code(0xD6, 0x8F, 0x11, hi(1100), lo(1100), 0x12);
+		int[] callAddrs = new int[NUM_ROUTINES];
+		for (int i = 0; i < NUM_ROUTINES; i++) {
+			callAddrs[i] = story.getCodeEndAddress();
+			story.code(0xE0, 0x2B, 0x00, 0x00, 0x11, 0x12, 0x00); // routine address filled in below
+			story.code(0xE6, 0xBF, 0x00);
+			story.code(0xBB);
+		}
+		story.code(0xC5, 0x4F, 0x10, hi(NUM_CALLS - 1), lo(NUM_CALLS - 1));
+		story.branch(false, mainAddr);
+		story.code(0xBA);
+
+		// a(l1, l2, l3): inc, inc_chk and dec_chk on the stack, returns 4 * (l1 + 1) + l3. Like
+		// the interpreter, the compiled code pops the value inc_chk and dec_chk compare.
+		//
+		//   push l2
+		//   push l1
+		//   inc_chk sp l2 ?~a1
+		//   inc l3
+		// a1:
+		//   dec_chk sp l1 ?~a2
+		//   add l3 2 -> l3
+		// a2:
+		//   push l1
+		//   inc sp
+		//   mul sp 4 -> sp
+		//   add sp l3 -> sp
+		//   ret_popped
+
+		int[] routines = new int[NUM_ROUTINES];
+		routines[0] = story.routine(3);
+		story.code(0xE8, 0xBF, 0x02);
+		story.code(0xE8, 0xBF, 0x01);
+		story.code(0x25, 0x00, 0x02);
+		skip(story, false, 2);
+		story.code(0x95, 0x03);
+		story.code(0x24, 0x00, 0x01);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x02, 0x03);
+		story.code(0xE8, 0xBF, 0x01);
+		story.code(0x95, 0x00);
+		story.code(0x56, 0x00, 0x04, 0x00);
+		story.code(0x74, 0x00, 0x03, 0x00);
+		story.code(0xB8);
+
+		// b(l1, l2, l3): jl and jg on signed values, returns one bit per comparison
+		//
+		//   jl l1 l2 ?~b1
+		//   inc l3
+		// b1:
+		//   jg l1 l2 ?~b2
+		//   add l3 2 -> l3
+		// b2:
+		//   jl l1 -10 ?~b3
+		//   add l3 4 -> l3
+		// b3:
+		//   jg l2 -32768 ?~b4
+		//   add l3 8 -> l3
+		// b4:
+		//   jg 5 l1 ?~b5
+		//   add l3 16 -> l3
+		// b5:
+		//   ret l3
+
+		routines[1] = story.routine(3);
+		story.code(0x62, 0x01, 0x02);
+		skip(story, false, 2);
+		story.code(0x95, 0x03);
+		story.code(0x63, 0x01, 0x02);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x02, 0x03);
+		story.code(0xC2, 0x8F, 0x01, 0xFF, 0xF6);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x04, 0x03);
+		story.code(0xC3, 0x8F, 0x02, 0x80, 0x00);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x08, 0x03);
+		story.code(0x23, 0x05, 0x01);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x10, 0x03);
+		story.code(0xAB, 0x03);
+
+		// c(l1, l2, l3): test, returns one bit per test
+		//
+		//   test l2 l1 ?~c1
+		//   inc l3
+		// c1:
+		//   test l2 0x8000 ?~c2
+		//   add l3 2 -> l3
+		// c2:
+		//   test l1 3 ?c3
+		//   add l3 4 -> l3
+		// c3:
+		//   test 0 l1 ?~c4
+		//   add l3 8 -> l3
+		// c4:
+		//   ret l3
+
+		routines[2] = story.routine(3);
+		story.code(0x67, 0x02, 0x01);
+		skip(story, false, 2);
+		story.code(0x95, 0x03);
+		story.code(0xC7, 0x8F, 0x02, 0x80, 0x00);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x02, 0x03);
+		story.code(0x47, 0x01, 0x03);
+		skip(story, true, 4);
+		story.code(0x54, 0x03, 0x04, 0x03);
+		story.code(0x27, 0x00, 0x01);
+		skip(story, false, 4);
+		story.code(0x54, 0x03, 0x08, 0x03);
+		story.code(0xAB, 0x03);
+
+		// d(l1, l2): branches that return, returns 1, 0 or 7
+		//
+		//   je l1 l2 ?rtrue
+		//   jz l1 ?rfalse
+		//   jg l1 10 ?rtrue
+		//   jl l1 -16 ?~rfalse
+		//   ret 7
+
+		routines[3] = story.routine(2);
+		story.code(0x61, 0x01, 0x02, 0xC1);
+		story.code(0xA0, 0x01, 0xC0);
+		story.code(0x43, 0x01, 0x0A, 0xC1);
+		story.code(0xC2, 0x8F, 0x01, 0xFF, 0xF0, 0x40);
+		story.code(0x9B, 0x07);
+
+		for (int i = 0; i < NUM_ROUTINES; i++) {
+			story.putWord(callAddrs[i] + 2, routines[i]);
+		}
+		return story;
+	}
+
+	private static void skip(TestStory story, boolean isOnTrue, int skippedLength) { // a branch over the next instruction
+		story.branch(isOnTrue, story.getCodeEndAddress() + 2 + skippedLength);
+	}
+
+	private static int hi(int value) {
+		return TestStory.hi(value);
+	}
+
+	private static int lo(int value) {
+		return TestStory.lo(value);
+	}
+}
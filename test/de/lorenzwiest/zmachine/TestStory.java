@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+class TestStory {
+
+	// Version 3 story assembled in memory, for tests that need a story doing one thing
+	//
+	// 0x000  header
+	// 0x040  abbreviation table, 96 empty abbreviations
+	// 0x110  object table, objects from 0x14E, then their property tables
+	// 0x200  global variables
+	// 0x3E0  text buffer, parse buffer at 0x3F8
+	// 0x400  dictionary without words, start of static memory
+	// 0x410  code and strings, start of high memory, beginning with the initial pc
+
+	public static final int ABBREVIATION_TABLE_ADDR = 0x040;
+	public static final int EMPTY_STRING_ADDR = 0x100;
+	public static final int OBJECT_TABLE_ADDR = 0x110;
+	public static final int GLOBALS_ADDR = 0x200;
+	public static final int TEXT_BUFFER_ADDR = 0x3E0;
+	public static final int PARSE_BUFFER_ADDR = 0x3F8;
+	public static final int DICTIONARY_ADDR = 0x400;
+	public static final int CODE_ADDR = 0x410;
+
+	private static final int NUM_DEFAULT_PROPERTIES = 31;
+	private static final int OBJECT_ELEMENT_SIZE = 9;
+	private static final int MAX_STORY_LENGTH = 0x10000;
+	private static final int CODE_PADDING = 32; // the interpreter only scans code this far from the end of the story
+
+	private final byte[] bytes = new byte[MAX_STORY_LENGTH];
+	private int codeEndAddr = CODE_ADDR;
+
+	public TestStory() {
+		this.bytes[0x00] = 3; // version
+		putWord(0x04, CODE_ADDR);
+		putWord(0x06, CODE_ADDR); // initial pc
+		putWord(0x08, DICTIONARY_ADDR);
+		putWord(0x0A, OBJECT_TABLE_ADDR);
+		putWord(0x0C, GLOBALS_ADDR);
+		putWord(0x0E, DICTIONARY_ADDR);
+		putWord(0x18, ABBREVIATION_TABLE_ADDR);
+
+		for (int i = 0; i < 96; i++) {
+			putWord(ABBREVIATION_TABLE_ADDR + (i * 2), EMPTY_STRING_ADDR / 2);
+		}
+		putWord(EMPTY_STRING_ADDR, 0x94A5); // z-chars 5, 5, 5
+
+		this.bytes[TEXT_BUFFER_ADDR] = 20; // max input length + 1
+		this.bytes[PARSE_BUFFER_ADDR] = 1; // max words
+		this.bytes[DICTIONARY_ADDR + 1] = 7; // no word separators, entry length, no entries
+	}
+
+	public static int getObjectAddress(int objNumber) {
+		return OBJECT_TABLE_ADDR + (NUM_DEFAULT_PROPERTIES * 2) + ((objNumber - 1) * OBJECT_ELEMENT_SIZE);
+	}
+
+	public static int getPropertyPointerAddress(int objNumber) {
+		return getObjectAddress(objNumber) + 7;
+	}
+
+	public void putObject(int objNumber, int parentNumber, int siblingNumber, int childNumber, int propTableAddr) {
+		int objAddr = getObjectAddress(objNumber);
+		this.bytes[objAddr + 4] = (byte) parentNumber;
+		this.bytes[objAddr + 5] = (byte) siblingNumber;
+		this.bytes[objAddr + 6] = (byte) childNumber;
+		putWord(objAddr + 7, propTableAddr);
+	}
+
+	public int putPropertyTable(int addr, int propNumber, int value) { // one 2-byte property, returns the address after the table
+		this.bytes[addr] = 0; // no name
+		this.bytes[addr + 1] = (byte) ((1 << 5) | propNumber);
+		putWord(addr + 2, value);
+		this.bytes[addr + 4] = 0; // end of properties
+		return addr + 5;
+	}
+
+	public void putWord(int addr, int value) {
+		this.bytes[addr] = (byte) (value >> 8);
+		this.bytes[addr + 1] = (byte) value;
+	}
+
+	// code
+
+	public int getCodeEndAddress() {
+		return this.codeEndAddr;
+	}
+
+	public void code(int... codeBytes) {
+		for (int codeByte : codeBytes) {
+			this.bytes[this.codeEndAddr++] = (byte) codeByte;
+		}
+	}
+
+	public void branch(boolean isOnTrue, int targetAddr) { // the branch part of an instruction, long form
+		int offset = (targetAddr - (this.codeEndAddr + 2)) + 2;
+		code((isOnTrue ? 0x80 : 0x00) | ((offset >> 8) & 0x3F), offset & 0xFF);
+	}
+
+	public void jump(int targetAddr) {
+		int offset = (targetAddr - (this.codeEndAddr + 3)) + 2;
+		code(0x8C, hi(offset), lo(offset));
+	}
+
+	public int routine(int numLocals) { // starts a routine with locals set to 0, returns its packed address
+		this.codeEndAddr += this.codeEndAddr & 1;
+		int routineAddr = this.codeEndAddr;
+		code(numLocals);
+		for (int i = 0; i < numLocals; i++) {
+			code(0, 0);
+		}
+		return routineAddr / 2;
+	}
+
+	public int string(int... zChars) { // starts a string of z-chars, three to a word, returns its packed address
+		this.codeEndAddr += this.codeEndAddr & 1;
+		int stringAddr = this.codeEndAddr;
+		for (int i = 0; i < zChars.length; i += 3) {
+			int word = (getZChar(zChars, i) << 10) | (getZChar(zChars, i + 1) << 5) | getZChar(zChars, i + 2);
+			if ((i + 3) >= zChars.length) {
+				word |= 0x8000; // end of string
+			}
+			code(hi(word), lo(word));
+		}
+		return stringAddr / 2;
+	}
+
+	private static int getZChar(int[] zChars, int index) {
+		return (index < zChars.length) ? zChars[index] : 5; // padded with z-char 5
+	}
+
+	public static int hi(int value) {
+		return (value >> 8) & 0xFF;
+	}
+
+	public static int lo(int value) {
+		return value & 0xFF;
+	}
+
+	public File write() throws IOException { // to a temporary file, delete it when done
+		int length = (this.codeEndAddr + CODE_PADDING + 1) & ~1;
+		byte[] story = Arrays.copyOf(this.bytes, length);
+		story[0x1A] = (byte) hi(length / 2);
+		story[0x1B] = (byte) lo(length / 2);
+
+		File storyFile = File.createTempFile("test-story", ".dat");
+		Files.write(storyFile.toPath(), story);
+		return storyFile;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lorenz Wiest
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package de.lorenzwiest.zmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class TranscriptBenchmark {
+
+	// Plays a story with a transcript of commands over and over in one JVM and
+	// prints the median time of a play-through. It goes through main() only, so
+	// the same benchmark runs against any revision of ZInterpreter on the class path:
+	//
+	//   java -cp <bin>:<test-bin> de.lorenzwiest.zmachine.TranscriptBenchmark \
+	//        test/adventure-walkthrough.txt adventure/Adventure.dat
+
+	private static final int NUM_WARMUP_RUNS = 50;
+	private static final int NUM_RUNS = 200;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: java TranscriptBenchmark <transcript> [<options>] <story-file>");
+			return;
+		}
+
+		byte[] transcript = Files.readAllBytes(Paths.get(args[0]));
+		String[] interpreterArgs = Arrays.copyOfRange(args, 1, args.length);
+
+		InputStream in = System.in;
+		PrintStream out = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long[] runNanos = new long[NUM_RUNS];
+		try {
+			for (int i = 0; i < (NUM_WARMUP_RUNS + NUM_RUNS); i++) {
+				output.reset();
+				System.setIn(new ByteArrayInputStream(transcript));
+				System.setOut(new PrintStream(output));
+
+				long startNanos = System.nanoTime();
+				ZInterpreter.main(interpreterArgs);
+				long endNanos = System.nanoTime();
+
+				if (i >= NUM_WARMUP_RUNS) {
+					runNanos[i - NUM_WARMUP_RUNS] = endNanos - startNanos;
+				}
+			}
+		} finally {
+			System.setIn(in);
+			System.setOut(out);
+		}
+
+		Arrays.sort(runNanos);
+		System.out.println(String.format("%d runs, median %.2f ms, fastest %.2f ms, %d bytes of output per run", //
+				NUM_RUNS, runNanos[NUM_RUNS / 2] / 1e6, runNanos[0] / 1e6, output.size()));
+	}
+}